@@ -1,7 +1,6 @@
 package s32x;
 
 import omegadrive.Device;
-import omegadrive.util.Fifo;
 import omegadrive.util.LogHelper;
 import omegadrive.util.Size;
 import omegadrive.util.Util;
@@ -10,10 +9,14 @@ import s32x.S32XMMREG.RegContext;
 import s32x.dict.S32xDict.RegSpecS32x;
 import s32x.savestate.Gs32xStateHandler;
 import s32x.sh2.device.DmaC;
+import s32x.util.IntFifo;
 import s32x.util.Md32xRuntimeData;
 import s32x.util.S32xUtil;
 import s32x.util.S32xUtil.CpuDeviceAccess;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serial;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 
@@ -45,9 +48,21 @@ public class DmaFifo68k implements Device {
     private static final boolean verbose = false;
 
     static class DmaFifo68kContext implements Serializable {
-        private final Fifo<Integer> fifo = Fifo.createIntegerFixedSizeFifo(DMA_FIFO_SIZE);
+        //pinned to the Fifo<Integer> version, older save states keep loading
+        @Serial
+        private static final long serialVersionUID = 5546641086954149096L;
+
+        private IntFifo fifo = new IntFifo(DMA_FIFO_SIZE);
         private boolean m68S = false;
         private boolean rv = false;
+
+        @Serial
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            ObjectInputStream.GetField f = in.readFields();
+            fifo = IntFifo.fromState(f.get("fifo", null), DMA_FIFO_SIZE);
+            m68S = f.get("m68S", false);
+            rv = f.get("rv", false);
+        }
     }
 
     public DmaFifo68k(RegContext regContext) {
@@ -131,7 +146,7 @@ public class DmaFifo68k implements Device {
         assert size == Size.WORD;
         if (ctx.m68S) {
             if (!ctx.fifo.isFull()) {
-                ctx.fifo.push(Util.getFromIntegerCache(value));
+                ctx.fifo.push(value);
                 updateFifoState();
             } else {
                 LOG.error("DMA Fifo full, discarding data");
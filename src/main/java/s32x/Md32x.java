@@ -25,6 +25,7 @@ import s32x.util.Md32xRuntimeData;
 import s32x.util.S32xMemView;
 import s32x.util.S32xUtil;
 import s32x.util.S32xUtil.CpuDeviceAccess;
+import s32x.vdp.MarsRenderPipeline;
 import s32x.vdp.MarsVdp;
 import s32x.vdp.MarsVdp.MarsVdpRenderContext;
 import s32x.vdp.debug.DebugVideoRenderContext;
@@ -46,6 +47,8 @@ public class Md32x extends Genesis implements PollSysEventManager.SysEventListen
 
     private static final boolean ENABLE_FM, ENABLE_PWM;
     public static final boolean SH2_DEBUG_DRC;
+    //jump to the next cycle where a cpu, the fm or the vdp are due, only the devices run in between
+    private static final boolean SCHEDULER_EN;
 
     //23.01Mhz NTSC
     protected final static int SH2_CYCLES_PER_STEP;
@@ -67,6 +70,7 @@ public class Md32x extends Genesis implements PollSysEventManager.SysEventListen
         boolean drcEn = Boolean.parseBoolean(System.getProperty("helios.32x.sh2.drc", "true"));
         boolean pollEn = Boolean.parseBoolean(System.getProperty("helios.32x.sh2.poll.detect", "true"));
         boolean ignoreDelays = Boolean.parseBoolean(System.getProperty("helios.32x.sh2.ignore.delays", "false"));
+        SCHEDULER_EN = Boolean.parseBoolean(System.getProperty("helios.32x.scheduler", "true"));
         sh2Config = new Sh2.Sh2Config(prefEn, drcEn, pollEn, ignoreDelays);
 
         Pwm.PWM_USE_BLIP = Boolean.parseBoolean(System.getProperty("helios.32x.pwm.use.blip", "false"));
@@ -80,7 +84,8 @@ public class Md32x extends Genesis implements PollSysEventManager.SysEventListen
 //        System.setProperty("z80.debug", "true");
 //        System.setProperty("sh2.master.debug", "true");
 //        System.setProperty("sh2.slave.debug", "true");
-        LOG.info("Enable FM: {}, Enable PWM: {}, Sh2Cycles: {}", ENABLE_FM, ENABLE_PWM, SH2_CYCLES_PER_STEP);
+        LOG.info("Enable FM: {}, Enable PWM: {}, Sh2Cycles: {}, scheduler: {}", ENABLE_FM, ENABLE_PWM,
+                SH2_CYCLES_PER_STEP, SCHEDULER_EN);
         for (int i = 0; i < sh2CycleTable.length; i++) {
             sh2CycleTable[i] = Math.max(1, (int) Math.round(i * SH2_CYCLE_DIV));
         }
@@ -88,11 +93,14 @@ public class Md32x extends Genesis implements PollSysEventManager.SysEventListen
     }
 
     public int nextMSh2Cycle = 0, nextSSh2Cycle = 0;
+    //set when a sh2 is woken up, see runDevicesUntilNextEvent
+    private boolean sh2WokenUp;
     private Md32xRuntimeData rt;
     private Sh2LaunchContext launchCtx;
     private Sh2 sh2;
     private Sh2Context masterCtx, slaveCtx;
     private MarsVdp marsVdp;
+    private Optional<MarsRenderPipeline> renderPipeline = Optional.empty();
 
     public Md32x(DisplayWindow emuFrame) {
         super(emuFrame);
@@ -109,6 +117,7 @@ public class Md32x extends Genesis implements PollSysEventManager.SysEventListen
         //aden 0 -> cycle = 0 = not running
         nextSSh2Cycle = nextMSh2Cycle = launchCtx.s32XMMREG.aden & 1;
         marsVdp.updateDebugView(((GenesisVdp) vdp).getDebugViewer());
+        renderPipeline = MarsRenderPipeline.createInstance(marsVdp, super::doRendering);
         super.initAfterRomLoad(); //needs to be last
         //TODO super inits the soundProvider
         launchCtx.pwm.setPwmProvider(ENABLE_PWM ? sound.getPwm() : PwmProvider.NO_SOUND);
@@ -129,13 +138,84 @@ public class Md32x extends Genesis implements PollSysEventManager.SysEventListen
             runZ80();
             runFM();
             runSh2();
-            runDevices();
+            runDevices(1);
             //this should be last as it could change the counter
             runVdp();
             cycleCounter++;
+            if (SCHEDULER_EN) {
+                runDevicesUntilNextEvent();
+            }
         } while (!futureDoneFlag);
     }
 
+    /**
+     * Skips the cycles where only the devices would run, the devices step in one go up to the cycle
+     * before the first device event: only an event (an interrupt, a dma transfer) can wake up a sh2,
+     * the batch ends as soon as one is woken up.
+     */
+    private void runDevicesUntilNextEvent() {
+        int next = nextEventCycle();
+        while (cycleCounter < next) {
+            //cycles before the first device event
+            final int n = Math.max(1, Math.min(next - cycleCounter, (nextDeviceEvent() - 1) / SH2_CYCLE_RATIO));
+            sh2WokenUp = false;
+            runDevices(n);
+            cycleCounter += n;
+            if (sh2WokenUp) {
+                assert n == 1 : "sh2 woken up within a batch of " + n;
+                catchUpSh2Cycle();
+                return;
+            }
+            next = Math.min(next, nextSh2Cycle());
+        }
+    }
+
+    /**
+     * A wake up within a batch is relative to the start of the batch, should not happen (see nextDeviceEvent),
+     * the sh2 runs at the current cycle rather than never. Sleeping (negative) and disabled (0, see aden) cpus are left alone.
+     */
+    private void catchUpSh2Cycle() {
+        if (nextMSh2Cycle > 0 && nextMSh2Cycle < cycleCounter) {
+            nextMSh2Cycle = cycleCounter;
+        }
+        if (nextSSh2Cycle > 0 && nextSSh2Cycle < cycleCounter) {
+            nextSSh2Cycle = cycleCounter;
+        }
+    }
+
+    //sh2 cycles
+    private int nextDeviceEvent() {
+        return Math.min(launchCtx.pwm.getCyclesToNextEvent(), Math.min(
+                launchCtx.mDevCtx.sh2MMREG.getCyclesToNextEvent(), launchCtx.sDevCtx.sh2MMREG.getCyclesToNextEvent()));
+    }
+
+    /**
+     * First cycle, starting from the current one, where the 68k, z80, fm, vdp or the sh2s are due.
+     */
+    private int nextEventCycle() {
+        int next = nextSh2Cycle();
+        next = Math.min(next, pendingCycle(next68kCycle));
+        next = Math.min(next, pendingCycle(nextZ80Cycle));
+        //see runFM
+        next = Math.min(next, cycleCounter + (FM_DIVIDER - cycleCounter % FM_DIVIDER) % FM_DIVIDER);
+        //see runVdp
+        return Math.min(next, Math.max(cycleCounter, (int) Math.ceil(nextVdpCycle)));
+    }
+
+    private int nextSh2Cycle() {
+        return Math.min(pendingCycle(nextMSh2Cycle), pendingCycle(nextSSh2Cycle));
+    }
+
+    //a sleeping cpu (negative) or a counter behind the current cycle never match
+    private int pendingCycle(int cycle) {
+        return cycle >= cycleCounter ? cycle : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Both sh2s run on this thread, interleaved at cycle granularity.
+     * Running the slave on its own thread within a bounded skew window has been declined: sdram,
+     * the frame buffer, the shared registers, the caches and the pollers would all need cross-thread fencing.
+     */
     //PAL: 1/3.0 gives ~ 450k per frame, 22.8Mhz. but the games are too slow!!!
     //53/7*burstCycles = if burstCycles = 3 -> 23.01Mhz
     protected final void runSh2() {
@@ -157,12 +237,13 @@ public class Md32x extends Genesis implements PollSysEventManager.SysEventListen
         }
     }
 
-    private void runDevices() {
+    private void runDevices(int cycles) {
         assert Md32xRuntimeData.getCpuDelayExt() == 0;
+        final int sh2Cycles = cycles * SH2_CYCLE_RATIO;
         //NOTE if Pwm triggers dreq, the cpuDelay should be assigned to the DMA engine, not to the CPU itself
-        launchCtx.pwm.step(SH2_CYCLE_RATIO);
-        launchCtx.mDevCtx.sh2MMREG.deviceStepSh2Rate(SH2_CYCLE_RATIO);
-        launchCtx.sDevCtx.sh2MMREG.deviceStepSh2Rate(SH2_CYCLE_RATIO);
+        launchCtx.pwm.step(sh2Cycles);
+        launchCtx.mDevCtx.sh2MMREG.deviceStepSh2Rate(sh2Cycles);
+        launchCtx.sDevCtx.sh2MMREG.deviceStepSh2Rate(sh2Cycles);
         assert Md32xRuntimeData.getCpuDelayExt() == 0;
     }
 
@@ -173,6 +254,10 @@ public class Md32x extends Genesis implements PollSysEventManager.SysEventListen
 
     @Override
     protected void doRendering(VideoMode mdVideoMode, int[] data, Optional<String> stats) {
+        if (renderPipeline.isPresent()) {
+            renderPipeline.get().submit(mdVideoMode, data, stats);
+            return;
+        }
         MarsVdpRenderContext ctx = marsVdp.getMarsVdpRenderContext();
         boolean dumpComposite = false, dumpMars = false;
         if (dumpComposite) {
@@ -237,6 +322,8 @@ public class Md32x extends Genesis implements PollSysEventManager.SysEventListen
         super.handleCloseRom();
         Optional.ofNullable(marsVdp).ifPresent(Device::reset);
         launchCtx.pwm.reset();
+        renderPipeline.ifPresent(MarsRenderPipeline::stop);
+        renderPipeline = Optional.empty();
         Md32xRuntimeData.releaseInstance();
     }
 
@@ -289,6 +376,7 @@ public class Md32x extends Genesis implements PollSysEventManager.SysEventListen
 
     public void setNextCycle(CpuDeviceAccess cpu, int value) {
         if (verbose) LOG.info("{} {} sleeping, nextCycle: {}", cpu, value < 0 ? "START" : "STOP", value);
+        sh2WokenUp |= value > 0;
         if (cpu == MASTER) {
             nextMSh2Cycle = value;
         } else {
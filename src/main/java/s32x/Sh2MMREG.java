@@ -19,6 +19,7 @@ import java.util.stream.IntStream;
 
 import static omegadrive.util.Util.readBufferByte;
 import static omegadrive.util.Util.th;
+import static s32x.sh2.device.FreeRunningTimer.SH2_ENABLE_FRT;
 import static s32x.dict.Sh2Dict.*;
 
 /**
@@ -44,6 +45,7 @@ public class Sh2MMREG implements Device {
     private DmaC dmaC;
     public IntControl intC;
     private WatchdogTimer wdt;
+    private FreeRunningTimer frt;
     private final Sh2Cache cache;
 
     private final S32xUtil.CpuDeviceAccess cpu;
@@ -64,6 +66,7 @@ public class Sh2MMREG implements Device {
         this.sci = ctx.sci;
         this.intC = ctx.intC;
         this.wdt = ctx.wdt;
+        this.frt = ctx.frt;
         reset();
     }
 
@@ -101,7 +104,11 @@ public class Sh2MMREG implements Device {
                 wdt.write(regSpec, pos, value, size);
                 break;
             case FRT:
-                handleWriteFRT(regSpec, pos, value, size);
+                if (SH2_ENABLE_FRT) {
+                    frt.write(regSpec, pos, value, size);
+                } else {
+                    handleWriteFRT(regSpec, pos, value, size);
+                }
                 break;
             case BSC:
                 handleWriteBSC(regSpec, pos, value, size);
@@ -152,9 +159,13 @@ public class Sh2MMREG implements Device {
                 case SCI -> res = sci.read(regSpec, pos, size);
                 case DIV -> res = divUnit.read(regSpec, pos, size);
                 case FRT -> {
-                    res = S32xUtil.readBuffer(regs, pos, size);
-                    if (regSpec != RegSpecSh2.FRT_TIER && regSpec != RegSpecSh2.FRT_TOCR) {
-                        LOG.error("{} Unexpected FRT reg {} read: {} {}", cpu, regSpec, th(res), size);
+                    if (SH2_ENABLE_FRT) {
+                        res = frt.read(regSpec, pos, size);
+                    } else {
+                        res = S32xUtil.readBuffer(regs, pos, size);
+                        if (regSpec != RegSpecSh2.FRT_TIER && regSpec != RegSpecSh2.FRT_TOCR) {
+                            LOG.error("{} Unexpected FRT reg {} read: {} {}", cpu, regSpec, th(res), size);
+                        }
                     }
                 }
                 case BSC -> {
@@ -262,10 +273,7 @@ public class Sh2MMREG implements Device {
         wdt.reset();
         dmaC.reset();
         intC.reset();
-        S32xUtil.writeBufferRaw(regs, RegSpecSh2.FRT_TIER.addr, 0x1, Size.BYTE);
-        S32xUtil.writeBufferRaw(regs, RegSpecSh2.FRT_TOCR.addr, 0xE0, Size.BYTE);
-        S32xUtil.writeBufferRaw(regs, RegSpecSh2.FRT_OCRAB_H.addr, 0xFF, Size.BYTE);
-        S32xUtil.writeBufferRaw(regs, RegSpecSh2.FRT_OCRAB_L.addr, 0xFF, Size.BYTE);
+        frt.reset();
         handleWriteBSC(RegSpecSh2.BSC_BCR1, BSC_LONG_WRITE_MASK | 0x3f0, Size.LONG);
         handleWriteBSC(RegSpecSh2.BSC_BCR2, BSC_LONG_WRITE_MASK | 0xFC, Size.LONG);
         handleWriteBSC(RegSpecSh2.BSC_WCR, BSC_LONG_WRITE_MASK | 0xAAFF, Size.LONG);
@@ -274,11 +282,24 @@ public class Sh2MMREG implements Device {
 
     //23 Mhz
     public void deviceStepSh2Rate(int cycles) {
-        assert cycles == 3;
+        //see getCyclesToNextEvent
+        assert cycles == 3 || cycles < dmaC.getCyclesToNextEvent();
         Md32xRuntimeData.setAccessTypeExt(cpu);
         wdt.step(cycles);
         dmaC.step(cycles);
+        if (SH2_ENABLE_FRT) {
+            frt.step(cycles);
+        }
         Md32xRuntimeData.resetCpuDelayExt(cpu, 0);
         if (verbose) sh2TicksPerFrame += cycles;
     }
+
+    /**
+     * Sh2 cycles until a device needs to step on its own: a dma transfer step, a wdt overflow
+     * or a frt compare match/overflow.
+     */
+    public int getCyclesToNextEvent() {
+        int next = Math.min(dmaC.getCyclesToNextEvent(), wdt.getCyclesToNextEvent());
+        return SH2_ENABLE_FRT ? Math.min(next, frt.getCyclesToNextEvent()) : next;
+    }
 }
@@ -79,6 +79,15 @@ public interface Sh2Bus extends Sh2Prefetcher, ReadableByteMemory, Device {
         return res;
     }
 
+    /**
+     * Dma bulk copy of len bytes, cache-through addresses incrementing by one unit per transfer,
+     * as a sequence of forward unit copies would.
+     * Returns false when the copy is not supported, nothing has been copied.
+     */
+    default boolean copyMemory(int srcAddress, int destAddress, int len, Size unit) {
+        return false;
+    }
+
     default void invalidateCachePrefetch(CacheInvalidateContext ctx) {
         //do nothing
     }
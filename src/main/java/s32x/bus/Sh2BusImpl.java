@@ -14,6 +14,7 @@ import s32x.savestate.Gs32xStateHandler;
 import s32x.sh2.Sh2;
 import s32x.sh2.cache.Sh2Cache;
 import s32x.sh2.cache.Sh2CacheImpl;
+import s32x.sh2.drc.Sh2Block;
 import s32x.sh2.prefetch.Sh2Prefetch;
 import s32x.sh2.prefetch.Sh2PrefetchSimple;
 import s32x.sh2.prefetch.Sh2Prefetcher;
@@ -24,6 +25,7 @@ import s32x.util.debug.MemAccessStats;
 import s32x.util.debug.SdramSyncTester;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import static omegadrive.util.Util.th;
 
@@ -34,6 +36,13 @@ public final class Sh2BusImpl implements Sh2Bus {
     private static final String ILLEGAL_ACCESS_STR = "{} sh2 {} access to {} when {}={}, addr: {} {}";
 
 	private static final boolean SDRAM_SYNC_TESTER = false;
+
+	//cache-through area, 64kb pages
+	private static final int PAGE_SHIFT = 16;
+	private static final int PAGE_MASK = (1 << (Sh2Cache.CACHE_ADDRESS_BITS - PAGE_SHIFT)) - 1;
+	private static final byte PAGE_UNMAPPED = 0, PAGE_SDRAM = 1, PAGE_ROM = 2, PAGE_FB = 3, PAGE_BOOT_REGS = 4;
+	private static final byte[] cacheThroughPages = createCacheThroughPages();
+
 	public BiosHolder.BiosData[] bios = new BiosHolder.BiosData[2];
 	public ByteBuffer sdram;
     public ByteBuffer rom;
@@ -51,6 +60,8 @@ public final class Sh2BusImpl implements Sh2Bus {
 	private final Sh2.Sh2Config config;
 
 	private final SdramSyncTester sdramSyncTester;
+	//dma source data not in sdram, see copyMemory
+	private ByteBuffer dmaBuffer = ByteBuffer.allocate(0);
 
     public Sh2BusImpl(S32XMMREG s32XMMREG, ByteBuffer rom, BiosHolder biosHolder, MdRomAccess mdBus, Sh2Prefetch.Sh2DrcContext... drcCtx) {
 		memoryDataCtx = new MemoryDataCtx();
@@ -92,38 +103,46 @@ public final class Sh2BusImpl implements Sh2Bus {
 			case Sh2Cache.CACHE_DATA_ARRAY_H3: //vr
 				return cache[cpuAccess.ordinal()].cacheMemoryRead(address, size);
 			case Sh2Cache.CACHE_THROUGH_H3:
-				if (address >= S32xDict.SH2_START_ROM && address < S32xDict.SH2_END_ROM) {
-					//TODO RV bit, sh2 should stall
-					assert DmaFifo68k.rv ? logWarnIllegalAccess(cpuAccess, "read", "ROM", "rv",
-							DmaFifo68k.rv, address, size) : true;
-					res = mdBus.readRom(address & 0xFF_FFFF, size);
-					S32xMemAccessDelay.addReadCpuDelay(S32xMemAccessDelay.ROM);
-				} else if (address >= S32xDict.START_32X_SYSREG && address < S32xDict.END_32X_COLPAL) {
-					if (S32xUtil.ENFORCE_FM_BIT_ON_READS && s32XMMREG.fm == 0 && address >= S32xDict.START_32X_VDPREG) {
-						logWarnIllegalAccess(cpuAccess, "read", "VDP regs", "FM",
-								s32XMMREG.fm, address, size);
-						return size.getMask();
+				switch (cacheThroughPages[(address >>> PAGE_SHIFT) & PAGE_MASK]) {
+					case PAGE_SDRAM -> {
+						res = S32xUtil.readBuffer(sdram, address & S32xDict.SH2_SDRAM_MASK, size);
+						S32xMemAccessDelay.addReadCpuDelay(S32xMemAccessDelay.SDRAM);
+						if (SDRAM_SYNC_TESTER) {
+							sdramSyncTester.readSyncCheck(cpuAccess, address, size);
+						}
 					}
-					res = s32XMMREG.read(address, size);
-				} else if (address >= S32xDict.SH2_START_SDRAM && address < S32xDict.SH2_END_SDRAM) {
-					res = S32xUtil.readBuffer(sdram, address & S32xDict.SH2_SDRAM_MASK, size);
-					S32xMemAccessDelay.addReadCpuDelay(S32xMemAccessDelay.SDRAM);
-					if (SDRAM_SYNC_TESTER) {
-						sdramSyncTester.readSyncCheck(cpuAccess, address, size);
+					case PAGE_ROM -> {
+						//TODO RV bit, sh2 should stall
+						assert DmaFifo68k.rv ? logWarnIllegalAccess(cpuAccess, "read", "ROM", "rv",
+								DmaFifo68k.rv, address, size) : true;
+						res = mdBus.readRom(address & 0xFF_FFFF, size);
+						S32xMemAccessDelay.addReadCpuDelay(S32xMemAccessDelay.ROM);
 					}
-				} else if (address >= S32xDict.START_DRAM && address < S32xDict.END_DRAM_OVER_MIRROR) {
-					if (S32xUtil.ENFORCE_FM_BIT_ON_READS && s32XMMREG.fm == 0) {
-						logWarnIllegalAccess(cpuAccess, "read", "FB/OVER", "FM",
-								s32XMMREG.fm, address, size);
-						return size.getMask();
+					case PAGE_FB -> {
+						if (S32xUtil.ENFORCE_FM_BIT_ON_READS && s32XMMREG.fm == 0) {
+							logWarnIllegalAccess(cpuAccess, "read", "FB/OVER", "FM",
+									s32XMMREG.fm, address, size);
+							return size.getMask();
+						}
+						res = s32XMMREG.read(address & S32xDict.DRAM_OVER_MIRROR_MASK, size);
+						S32xMemAccessDelay.addReadCpuDelay(S32xMemAccessDelay.FRAME_BUFFER);
 					}
-					res = s32XMMREG.read(address & S32xDict.DRAM_OVER_MIRROR_MASK, size);
-					S32xMemAccessDelay.addReadCpuDelay(S32xMemAccessDelay.FRAME_BUFFER);
-				} else if (address >= S32xDict.SH2_START_BOOT_ROM && address < S32xDict.SH2_END_BOOT_ROM) {
-					res = bios[cpuAccess.ordinal()].readBuffer(address, size);
-					S32xMemAccessDelay.addReadCpuDelay(S32xMemAccessDelay.BOOT_ROM);
-				} else {
-					LOG.error("{} read from addr: {}, {}", cpuAccess, th(address), size);
+					case PAGE_BOOT_REGS -> {
+						if (address >= S32xDict.START_32X_SYSREG && address < S32xDict.END_32X_COLPAL) {
+							if (S32xUtil.ENFORCE_FM_BIT_ON_READS && s32XMMREG.fm == 0 && address >= S32xDict.START_32X_VDPREG) {
+								logWarnIllegalAccess(cpuAccess, "read", "VDP regs", "FM",
+										s32XMMREG.fm, address, size);
+								return size.getMask();
+							}
+							res = s32XMMREG.read(address, size);
+						} else if (address >= S32xDict.SH2_START_BOOT_ROM && address < S32xDict.SH2_END_BOOT_ROM) {
+							res = bios[cpuAccess.ordinal()].readBuffer(address, size);
+							S32xMemAccessDelay.addReadCpuDelay(S32xMemAccessDelay.BOOT_ROM);
+						} else {
+							LOG.error("{} read from addr: {}, {}", cpuAccess, th(address), size);
+						}
+					}
+					default -> LOG.error("{} read from addr: {}, {}", cpuAccess, th(address), size);
 				}
 				break;
 			case Sh2Cache.CACHE_IO_H3: //0xF
@@ -167,30 +186,37 @@ public final class Sh2BusImpl implements Sh2Bus {
 				//NOTE as the next cache access will reload the data from MEM
 				break;
 			case Sh2Cache.CACHE_THROUGH_H3:
-				if (address >= S32xDict.START_DRAM && address < S32xDict.END_DRAM_OVER_MIRROR) {
-					if (s32XMMREG.fm == 0) {
-						logWarnIllegalAccess(cpuAccess, "write", "FB/OVER", "FM",
-								s32XMMREG.fm, address, size);
-						return;
+				switch (cacheThroughPages[(address >>> PAGE_SHIFT) & PAGE_MASK]) {
+					case PAGE_SDRAM -> {
+						if (SDRAM_SYNC_TESTER) {
+							sdramSyncTester.writeSyncCheck(cpuAccess, address, val, size);
+						}
+						hasMemoryChanged = S32xUtil.writeBufferRaw(sdram, address & S32xDict.SH2_SDRAM_MASK, val, size);
+						S32xMemAccessDelay.addWriteCpuDelay(S32xMemAccessDelay.SDRAM);
 					}
-					s32XMMREG.write(address & S32xDict.DRAM_OVER_MIRROR_MASK, val, size);
-				} else if (address >= S32xDict.SH2_START_SDRAM && address < S32xDict.SH2_END_SDRAM) {
-					if (SDRAM_SYNC_TESTER) {
-						sdramSyncTester.writeSyncCheck(cpuAccess, address, val, size);
+					case PAGE_FB -> {
+						if (s32XMMREG.fm == 0) {
+							logWarnIllegalAccess(cpuAccess, "write", "FB/OVER", "FM",
+									s32XMMREG.fm, address, size);
+							return;
+						}
+						s32XMMREG.write(address & S32xDict.DRAM_OVER_MIRROR_MASK, val, size);
 					}
-					hasMemoryChanged = S32xUtil.writeBufferRaw(sdram, address & S32xDict.SH2_SDRAM_MASK, val, size);
-                    S32xMemAccessDelay.addWriteCpuDelay(S32xMemAccessDelay.SDRAM);
-				} else if (address >= S32xDict.START_32X_SYSREG && address < S32xDict.END_32X_SYSREG) {
-					s32XMMREG.write(address, val, size);
-				} else if (address >= S32xDict.START_32X_VDPREG && address < S32xDict.END_32X_COLPAL) {
-					if (s32XMMREG.fm == 0) {
-						logWarnIllegalAccess(cpuAccess, "write", " VDP regs", "FM",
-								s32XMMREG.fm, address, size);
-						return;
+					case PAGE_BOOT_REGS -> {
+						if (address >= S32xDict.START_32X_SYSREG && address < S32xDict.END_32X_SYSREG) {
+							s32XMMREG.write(address, val, size);
+						} else if (address >= S32xDict.START_32X_VDPREG && address < S32xDict.END_32X_COLPAL) {
+							if (s32XMMREG.fm == 0) {
+								logWarnIllegalAccess(cpuAccess, "write", " VDP regs", "FM",
+										s32XMMREG.fm, address, size);
+								return;
+							}
+							s32XMMREG.write(address, val, size);
+						} else {
+							LOG.error("{} write to addr: {}, {} {}", cpuAccess, th(address), th(val), size);
+						}
 					}
-					s32XMMREG.write(address, val, size);
-				} else {
-					LOG.error("{} write to addr: {}, {} {}", cpuAccess, th(address), th(val), size);
+					default -> LOG.error("{} write to addr: {}, {} {}", cpuAccess, th(address), th(val), size);
 				}
 				break;
 			case Sh2Cache.CACHE_IO_H3: //0xF
@@ -215,6 +241,81 @@ public final class Sh2BusImpl implements Sh2Bus {
 		}
 	}
 
+	/**
+	 * Dma bulk copy to sdram, frame buffer or overwrite image; from sdram, rom or frame buffer.
+	 * The destination is written in one go, blocks overlapping the changed bytes are invalidated once.
+	 */
+	@Override
+	public boolean copyMemory(int srcAddress, int destAddress, int len, Size unit) {
+		if (SDRAM_SYNC_TESTER || SH2_MEM_ACCESS_STATS || len <= 0) {
+			return false;
+		}
+		final byte srcPage = getCacheThroughPage(srcAddress, len);
+		final byte destPage = getCacheThroughPage(destAddress, len);
+		final boolean fbDest = destPage == PAGE_FB;
+		if (destPage != PAGE_SDRAM && !(fbDest && (destAddress & S32xDict.DRAM_MASK) + len <= S32xDict.DRAM_SIZE)) {
+			return false;
+		}
+		if ((srcPage != PAGE_SDRAM && srcPage != PAGE_ROM && srcPage != PAGE_FB) || (fbDest && srcPage == PAGE_FB)) {
+			return false;
+		}
+		if ((fbDest || srcPage == PAGE_FB) && s32XMMREG.fm == 0) {
+			return false;
+		}
+		final byte[] data;
+		final int pos;
+		if (srcPage == PAGE_SDRAM) {
+			data = sdram.array();
+			pos = srcAddress & S32xDict.SH2_SDRAM_MASK;
+			final int dest = destAddress & S32xDict.SH2_SDRAM_MASK;
+			//a forward copy would repeat the overlapping data
+			if (!fbDest && dest > pos && dest < pos + len) {
+				return false;
+			}
+		} else {
+			if (dmaBuffer.capacity() < len) {
+				dmaBuffer = ByteBuffer.allocate(len);
+			}
+			for (int i = 0; i < len; i += unit.getByteSize()) {
+				S32xUtil.writeBufferRaw(dmaBuffer, i, read(srcAddress + i, unit), unit);
+			}
+			data = dmaBuffer.array();
+			pos = 0;
+		}
+		if (fbDest) {
+			s32XMMREG.getVdp().writeFrameBuffer(destAddress & S32xDict.DRAM_OVER_MIRROR_MASK & S32xDict.SH2_CACHE_THROUGH_MASK,
+					data, pos, len, unit);
+		} else {
+			writeSdram(data, pos, destAddress, len);
+		}
+		return true;
+	}
+
+	private void writeSdram(byte[] data, int pos, int destAddress, int len) {
+		final byte[] mem = sdram.array();
+		final int dest = destAddress & S32xDict.SH2_SDRAM_MASK;
+		final int first = Arrays.mismatch(data, pos, pos + len, mem, dest, dest + len);
+		if (first < 0) {
+			return;
+		}
+		int last = len - 1;
+		while (data[pos + last] == mem[dest + last]) {
+			last--;
+		}
+		System.arraycopy(data, pos, mem, dest, len);
+		prefetch.dataWriteRange(Md32xRuntimeData.getAccessTypeExt(), destAddress + first, destAddress + last);
+	}
+
+	//the same memory type from address to address + len - 1, PAGE_UNMAPPED otherwise
+	private static byte getCacheThroughPage(int address, int len) {
+		if (((address >>> Sh2Cache.CACHE_ADDRESS_BITS) & 0xFF) != Sh2Cache.CACHE_THROUGH_H3 ||
+				((address + len - 1) >>> Sh2Cache.CACHE_ADDRESS_BITS & 0xFF) != Sh2Cache.CACHE_THROUGH_H3) {
+			return PAGE_UNMAPPED;
+		}
+		final byte page = cacheThroughPages[(address >>> PAGE_SHIFT) & PAGE_MASK];
+		return page == cacheThroughPages[((address + len - 1) >>> PAGE_SHIFT) & PAGE_MASK] ? page : PAGE_UNMAPPED;
+	}
+
 	@Override
 	public void invalidateCachePrefetch(Sh2Cache.CacheInvalidateContext ctx) {
 		prefetch.invalidateCachePrefetch(ctx);
@@ -229,6 +330,11 @@ public final class Sh2BusImpl implements Sh2Bus {
 		return prefetch.fetchDelaySlot(pc, ft, cpu);
 	}
 
+	@Override
+	public void extendBlock(Sh2Block block) {
+		prefetch.extendBlock(block);
+	}
+
 	@Override
 	public Sh2MMREG getSh2MMREGS(S32xUtil.CpuDeviceAccess cpu) {
 		return sh2MMREGS[cpu.ordinal()];
@@ -265,6 +371,27 @@ public final class Sh2BusImpl implements Sh2Bus {
 		sdram.rewind().put(buffer);
 	}
 
+	/**
+	 * Memory type of each 64kb page of the cache-through area, the page holding the boot rom
+	 * and the 32x registers is decoded further on access.
+	 */
+	private static byte[] createCacheThroughPages() {
+		byte[] pages = new byte[PAGE_MASK + 1];
+		fillPages(pages, S32xDict.SH2_START_SDRAM, S32xDict.SH2_END_SDRAM, PAGE_SDRAM);
+		fillPages(pages, S32xDict.SH2_START_ROM, S32xDict.SH2_END_ROM, PAGE_ROM);
+		fillPages(pages, S32xDict.START_DRAM, S32xDict.END_DRAM_OVER_MIRROR, PAGE_FB);
+		fillPages(pages, S32xDict.SH2_START_BOOT_ROM, S32xDict.END_32X_COLPAL, PAGE_BOOT_REGS);
+		return pages;
+	}
+
+	private static void fillPages(byte[] pages, int start, int end, byte type) {
+		assert (start & ((1 << PAGE_SHIFT) - 1)) == 0;
+		assert type == PAGE_BOOT_REGS || (end & ((1 << PAGE_SHIFT) - 1)) == 0;
+		for (int addr = start; addr < end; addr += 1 << PAGE_SHIFT) {
+			pages[(addr >>> PAGE_SHIFT) & PAGE_MASK] = type;
+		}
+	}
+
 	private static boolean logWarnIllegalAccess(S32xUtil.CpuDeviceAccess cpu, String rw, String memType, String accessType,
 												Object val, int address, Size size) {
 		LOG.warn(ILLEGAL_ACCESS_STR, cpu, rw, memType, accessType, val, th(address), size);
@@ -2,7 +2,6 @@ package s32x.pwm;
 
 import com.google.common.primitives.Ints;
 import omegadrive.sound.PwmProvider;
-import omegadrive.util.Fifo;
 import omegadrive.util.LogHelper;
 import omegadrive.util.Size;
 import omegadrive.util.Util;
@@ -13,7 +12,11 @@ import s32x.dict.S32xDict.RegSpecS32x;
 import s32x.savestate.Gs32xStateHandler;
 import s32x.sh2.device.DmaC;
 import s32x.sh2.device.IntControl;
+import s32x.util.IntFifo;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serial;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 
@@ -48,7 +51,7 @@ public class Pwm implements StepDevice {
     enum PwmChannel {LEFT, RIGHT}
 
     static class PwmChannelMap {
-        public Fifo<Integer> fifo;
+        public IntFifo fifo;
         public PwmChannel channel;
     }
 
@@ -80,14 +83,36 @@ public class Pwm implements StepDevice {
     private final PwmChannelMap fifoMapRight = new PwmChannelMap();
 
     static class PwmContext implements Serializable {
-        private final Fifo<Integer> fifoLeft = Fifo.createIntegerFixedSizeFifo(PWM_FIFO_SIZE);
-        private final Fifo<Integer> fifoRight = Fifo.createIntegerFixedSizeFifo(PWM_FIFO_SIZE);
-        private final PwmChannelSetup[] channelMap = {OFF, OFF};
+        //pinned to the Fifo<Integer> version, older save states keep loading
+        @Serial
+        private static final long serialVersionUID = -4421577765971810509L;
+
+        private IntFifo fifoLeft = new IntFifo(PWM_FIFO_SIZE);
+        private IntFifo fifoRight = new IntFifo(PWM_FIFO_SIZE);
+        private PwmChannelSetup[] channelMap = {OFF, OFF};
         private boolean pwmEnable, dreqEn;
         private int cycle = 0, interruptInterval;
         private int sh2TicksToNextPwmSample, sh2ticksToNextPwmInterrupt, sh2TicksToNext22khzSample = CYCLE_22khz;
         private int rs, ls;
-        private final int[] latestPwmValue = new int[PwmChannel.values().length];
+        private int[] latestPwmValue = new int[PwmChannel.values().length];
+
+        @Serial
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            ObjectInputStream.GetField f = in.readFields();
+            fifoLeft = IntFifo.fromState(f.get("fifoLeft", null), PWM_FIFO_SIZE);
+            fifoRight = IntFifo.fromState(f.get("fifoRight", null), PWM_FIFO_SIZE);
+            channelMap = (PwmChannelSetup[]) f.get("channelMap", channelMap);
+            pwmEnable = f.get("pwmEnable", false);
+            dreqEn = f.get("dreqEn", false);
+            cycle = f.get("cycle", 0);
+            interruptInterval = f.get("interruptInterval", 0);
+            sh2TicksToNextPwmSample = f.get("sh2TicksToNextPwmSample", 0);
+            sh2ticksToNextPwmInterrupt = f.get("sh2ticksToNextPwmInterrupt", 0);
+            sh2TicksToNext22khzSample = f.get("sh2TicksToNext22khzSample", CYCLE_22khz);
+            rs = f.get("rs", 0);
+            ls = f.get("ls", 0);
+            latestPwmValue = (int[]) f.get("latestPwmValue", latestPwmValue);
+        }
     }
 
     public Pwm(S32XMMREG.RegContext regContext) {
@@ -272,7 +297,7 @@ public class Pwm implements StepDevice {
         ctx.fifoLeft.clear();
     }
 
-    private void writeFifo(Fifo<Integer> fifo, int value) {
+    private void writeFifo(IntFifo fifo, int value) {
         if (!ctx.pwmEnable) {
             return;
         }
@@ -284,7 +309,7 @@ public class Pwm implements StepDevice {
         //Darxide, Mars Check v01 do this
         value = Ints.constrainToRange(value, SAMPLE_LIMIT_DELTA, 0xFFF - SAMPLE_LIMIT_DELTA);
         assert value >= 0;
-        fifo.push(Util.getFromIntegerCache((value - 1) & 0xFFF));
+        fifo.push((value - 1) & 0xFFF);
         updateFifoRegs();
     }
 
@@ -292,7 +317,7 @@ public class Pwm implements StepDevice {
         return (readFifo(ctx.fifoLeft, LEFT) + readFifo(ctx.fifoRight, RIGHT)) >> 1;
     }
 
-    private int readFifo(Fifo<Integer> fifo, PwmChannel chan) {
+    private int readFifo(IntFifo fifo, PwmChannel chan) {
         if (fifo.isEmpty()) {
             if (verbose) LOG.warn("PWM FIFO pop when ctx.fifo empty: {}", th(ctx.latestPwmValue[chan.ordinal()]));
             return chan != null ? ctx.latestPwmValue[chan.ordinal()] : ctx.cycle >> 1;
@@ -338,39 +363,51 @@ public class Pwm implements StepDevice {
     @Override
     public void step(int cycles) {
         if (verbose) stepsPerFrame += cycles;
-        while (ctx.pwmEnable && cycles-- > 0) {
-            stepOne();
-        }
-    }
-
-
-
-    private void stepOne() {
-        if (--ctx.sh2TicksToNextPwmSample == 0) {
-            ctx.sh2TicksToNextPwmSample = ctx.cycle;
-            pwmSamplesPerFrame++;
-            //sample range should be [0,cycle], let's clamp to [sld, cycle - sld]
-            ctx.ls = Math.min(ctx.cycle - SAMPLE_LIMIT_DELTA, readFifo(fifoMapLeft.fifo, fifoMapLeft.channel) + SAMPLE_LIMIT_DELTA);
-            ctx.rs = Math.min(ctx.cycle - SAMPLE_LIMIT_DELTA, readFifo(fifoMapRight.fifo, fifoMapRight.channel) + SAMPLE_LIMIT_DELTA);
-            assert ctx.ls >= SAMPLE_LIMIT_DELTA && ctx.rs >= SAMPLE_LIMIT_DELTA;
-            if (PWM_USE_BLIP) {
-                playSupport.playSample(ctx.ls, ctx.rs);
+        while (ctx.pwmEnable && cycles > 0) {
+            //jump to the next sample boundary, or consume all the cycles
+            int n = Math.min(cycles, ctx.sh2TicksToNextPwmSample);
+            if (!PWM_USE_BLIP) {
+                n = Math.min(n, ctx.sh2TicksToNext22khzSample);
+                ctx.sh2TicksToNext22khzSample -= n;
             }
-            if (--ctx.sh2ticksToNextPwmInterrupt == 0) {
-                intControls[MASTER.ordinal()].setIntPending(IntControl.Sh2Interrupt.PWM_6, true);
-                intControls[SLAVE.ordinal()].setIntPending(IntControl.Sh2Interrupt.PWM_6, true);
-                ctx.sh2ticksToNextPwmInterrupt = ctx.interruptInterval;
-                dreq();
+            ctx.sh2TicksToNextPwmSample -= n;
+            cycles -= n;
+            if (ctx.sh2TicksToNextPwmSample == 0) {
+                pwmSample();
             }
-        }
-        if (!PWM_USE_BLIP) {
-            if (--ctx.sh2TicksToNext22khzSample == 0) {
+            if (!PWM_USE_BLIP && ctx.sh2TicksToNext22khzSample == 0) {
                 playSupport.playSample(ctx.ls, ctx.rs);
                 ctx.sh2TicksToNext22khzSample = CYCLE_22khz;
             }
         }
     }
 
+    /**
+     * Sh2 cycles until the next pwm sample, when the fifos are read and an interrupt/dreq can be raised.
+     * Returns Integer.MAX_VALUE when the pwm is disabled.
+     */
+    public int getCyclesToNextEvent() {
+        return ctx.pwmEnable ? ctx.sh2TicksToNextPwmSample : Integer.MAX_VALUE;
+    }
+
+    private void pwmSample() {
+        ctx.sh2TicksToNextPwmSample = ctx.cycle;
+        pwmSamplesPerFrame++;
+        //sample range should be [0,cycle], let's clamp to [sld, cycle - sld]
+        ctx.ls = Math.min(ctx.cycle - SAMPLE_LIMIT_DELTA, readFifo(fifoMapLeft.fifo, fifoMapLeft.channel) + SAMPLE_LIMIT_DELTA);
+        ctx.rs = Math.min(ctx.cycle - SAMPLE_LIMIT_DELTA, readFifo(fifoMapRight.fifo, fifoMapRight.channel) + SAMPLE_LIMIT_DELTA);
+        assert ctx.ls >= SAMPLE_LIMIT_DELTA && ctx.rs >= SAMPLE_LIMIT_DELTA;
+        if (PWM_USE_BLIP) {
+            playSupport.playSample(ctx.ls, ctx.rs);
+        }
+        if (--ctx.sh2ticksToNextPwmInterrupt == 0) {
+            intControls[MASTER.ordinal()].setIntPending(IntControl.Sh2Interrupt.PWM_6, true);
+            intControls[SLAVE.ordinal()].setIntPending(IntControl.Sh2Interrupt.PWM_6, true);
+            ctx.sh2ticksToNextPwmInterrupt = ctx.interruptInterval;
+            dreq();
+        }
+    }
+
     private void dreq() {
         if (ctx.dreqEn) {
             //NOTE this should trigger on channel one for BOTH sh2s
@@ -1,9 +1,9 @@
 package s32x.pwm;
 
 import omegadrive.sound.javasound.AbstractSoundManager;
-import omegadrive.util.Fifo;
 import omegadrive.util.LogHelper;
 import org.slf4j.Logger;
+import s32x.util.IntFifo;
 import s32x.util.S32xUtil;
 
 import javax.sound.sampled.AudioFormat;
@@ -17,7 +17,7 @@ public class PwmUtil {
 
     private static final Logger LOG = LogHelper.getLogger(PwmUtil.class.getSimpleName());
 
-    public static final Fifo<Integer> EMPTY_FIFO = Fifo.createIntegerFixedSizeFifo(0);
+    public static final IntFifo EMPTY_FIFO = new IntFifo(0);
 
     public static final Warmup NO_WARMUP = new Warmup();
     public static final Warmup WARMUP = new Warmup();
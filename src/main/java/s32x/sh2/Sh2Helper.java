@@ -5,12 +5,11 @@ import omegadrive.util.LogHelper;
 import org.slf4j.Logger;
 import s32x.dict.S32xDict;
 import s32x.sh2.drc.Sh2Block;
+import s32x.sh2.drc.Sh2KnownBlocks;
+import s32x.sh2.prefetch.Sh2CodePages;
 import s32x.util.S32xUtil.CpuDeviceAccess;
 
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
 
 import static omegadrive.util.Util.th;
 import static s32x.sh2.Sh2Debug.createContext;
@@ -26,9 +25,15 @@ public class Sh2Helper {
     public static final Sh2Disassembler disasm = new Sh2Disassembler();
     private static final String simpleFormat = "%s %08x\t%04x\t%s";
 
-    private static final Sh2PcInfoWrapper[] EMPTY_WRAPPER = new Sh2PcInfoWrapper[0];
+    //entries per page of the pc info table, MASTER and SLAVE interleaved
+    public static final int PIW_PAGE_SHIFT = 10;
+    private static final int PIW_PAGE_MASK = (1 << PIW_PAGE_SHIFT) - 1;
+
+    private static final Sh2PcInfoWrapper[][] EMPTY_AREA = new Sh2PcInfoWrapper[0][];
     public static final Sh2PcInfoWrapper SH2_NOT_VISITED = new Sh2PcInfoWrapper(0, 0);
-    private static Sh2PcInfoWrapper[][] piwArr = createPcInfoWrapper();
+    //shared by all the pages not visited yet, never written to
+    private static final Sh2PcInfoWrapper[] NOT_VISITED_PAGE = createNotVisitedPage();
+    private static Sh2PcInfoWrapper[][][] piwArr = createPcInfoWrapper();
 
 
     /**
@@ -38,12 +43,9 @@ public class Sh2Helper {
     public final static class Sh2PcInfoWrapper extends CpuFastDebug.PcInfoWrapper {
 
         public Sh2Block block = Sh2Block.INVALID_BLOCK;
-        public Map<Integer, Sh2Block> knownBlocks = Collections.emptyMap();
+        public Sh2KnownBlocks knownBlocks = Sh2KnownBlocks.EMPTY;
         private static final boolean verbose = false;
 
-        //reduce boxing by using a 16-bit hash (key)
-        public static final int HASH_CODE_MASK = 0xFFFF;
-
         public Sh2PcInfoWrapper(int area, int pcMasked) {
             super(area, pcMasked);
         }
@@ -67,52 +69,65 @@ public class Sh2Helper {
 
         public Sh2Block addToKnownBlocks(Sh2Block b) {
             assert this != SH2_NOT_VISITED;
-            if (knownBlocks == Collections.EMPTY_MAP) {
-                knownBlocks = new HashMap<>(1);
+            if (knownBlocks == Sh2KnownBlocks.EMPTY) {
+                knownBlocks = new Sh2KnownBlocks();
             }
-            Sh2Block prev = knownBlocks.put(b.hashCodeWords & HASH_CODE_MASK, b);
-            //check for hash collisions
-            assert prev != null ? prev == b : true;
-            return prev;
+            return knownBlocks.add(b);
         }
-    }
 
+        public Sh2Block getKnownBlock(int hashCodeWords, int[] words, int lenWords) {
+            return knownBlocks.get(hashCodeWords, words, lenWords);
+        }
+
+        public void removeKnownBlock(Sh2Block b) {
+            knownBlocks.remove(b);
+        }
+    }
 
     public static void clear() {
         piwArr = createWrapper(createContext());
+        Sh2KnownBlocks.clear();
+        Sh2CodePages.clear();
     }
 
     /**
-     * Even indexes -> MASTER pc
-     * Odd indexes  -> SLAVE pc, actual PC is pc & ~1
+     * [area][page][entry], pages are allocated on the first visit.
+     * Even entries -> MASTER pc
+     * Odd entries  -> SLAVE pc, actual PC is pc & ~1
      */
-    private static Sh2PcInfoWrapper[][] createPcInfoWrapper() {
+    private static Sh2PcInfoWrapper[][][] createPcInfoWrapper() {
         if (piwArr == null) {
             piwArr = createWrapper(createContext());
         }
         return piwArr;
     }
 
-    public static Sh2PcInfoWrapper[][] getPcInfoWrapper() {
+    public static Sh2PcInfoWrapper[][][] getPcInfoWrapper() {
         assert piwArr != null;
         return piwArr;
     }
 
-    private static Sh2PcInfoWrapper[][] createWrapper(CpuFastDebug.CpuDebugContext ctx) {
-        Sh2PcInfoWrapper[][] pcInfoWrapper = new Sh2PcInfoWrapper[ctx.pcAreasNumber][0];
-        assert EMPTY_WRAPPER != null;
-        Arrays.fill(pcInfoWrapper, EMPTY_WRAPPER);
+    private static Sh2PcInfoWrapper[][][] createWrapper(CpuFastDebug.CpuDebugContext ctx) {
+        Sh2PcInfoWrapper[][][] pcInfoWrapper = new Sh2PcInfoWrapper[ctx.pcAreasNumber][][];
+        assert EMPTY_AREA != null && NOT_VISITED_PAGE != null;
+        Arrays.fill(pcInfoWrapper, EMPTY_AREA);
 
         for (int i = 0; i < ctx.pcAreasMaskMap.length; ++i) {
             int pcAreaSize = ctx.pcAreasMaskMap[i] + 1;
             if (pcAreaSize > 1) {
-                pcInfoWrapper[i] = new Sh2PcInfoWrapper[pcAreaSize];
-                Arrays.fill(pcInfoWrapper[i], SH2_NOT_VISITED);
+                pcInfoWrapper[i] = new Sh2PcInfoWrapper[Math.max(1, pcAreaSize >>> PIW_PAGE_SHIFT)][];
+                Arrays.fill(pcInfoWrapper[i], NOT_VISITED_PAGE);
             }
         }
         return pcInfoWrapper;
     }
 
+    private static Sh2PcInfoWrapper[] createNotVisitedPage() {
+        Sh2PcInfoWrapper[] page = new Sh2PcInfoWrapper[1 << PIW_PAGE_SHIFT];
+        Arrays.fill(page, SH2_NOT_VISITED);
+        return page;
+    }
+
     public static boolean isValidPc(int pc, CpuDeviceAccess cpu) {
         assert (pc & 1) == 0 : th(pc);
         final int piwPc = pc | cpu.ordinal();
@@ -122,12 +137,13 @@ public class Sh2Helper {
     public static Sh2PcInfoWrapper getOrDefault(int pc, CpuDeviceAccess cpu) {
         assert (pc & 1) == 0 : th(pc);
         final int piwPc = pc | cpu.ordinal();
-        final Sh2PcInfoWrapper[] piwSubArr = piwArr[piwPc >>> S32xDict.SH2_PC_AREA_SHIFT];
-        if (piwSubArr.length == 0) {
+        final Sh2PcInfoWrapper[][] piwArea = piwArr[piwPc >>> S32xDict.SH2_PC_AREA_SHIFT];
+        if (piwArea.length == 0) {
             return SH2_NOT_VISITED;
         }
         //TODO cache-through vs cached
-        Sh2PcInfoWrapper piw = piwSubArr[piwPc & Sh2Debug.pcAreaMaskMap[piwPc >>> S32xDict.SH2_PC_AREA_SHIFT]];
+        final int idx = piwPc & Sh2Debug.pcAreaMaskMap[piwPc >>> S32xDict.SH2_PC_AREA_SHIFT];
+        Sh2PcInfoWrapper piw = piwArea[idx >>> PIW_PAGE_SHIFT][idx & PIW_PAGE_MASK];
         assert (piw != SH2_NOT_VISITED
                 ? piw.pcMasked == (pc & Sh2Debug.pcAreaMaskMap[pc >>> S32xDict.SH2_PC_AREA_SHIFT]) : true) : th(piwPc) + "," + th(piw.pcMasked);
         return piw;
@@ -141,7 +157,8 @@ public class Sh2Helper {
         assert (pc & 1) == 0 : th(pc);
         final int piwPc = pc | cpu.ordinal();
         //TODO cache-through vs cached
-        Sh2PcInfoWrapper piw = piwArr[piwPc >>> S32xDict.SH2_PC_AREA_SHIFT][piwPc & Sh2Debug.pcAreaMaskMap[piwPc >>> S32xDict.SH2_PC_AREA_SHIFT]];
+        final int idx = piwPc & Sh2Debug.pcAreaMaskMap[piwPc >>> S32xDict.SH2_PC_AREA_SHIFT];
+        Sh2PcInfoWrapper piw = piwArr[piwPc >>> S32xDict.SH2_PC_AREA_SHIFT][idx >>> PIW_PAGE_SHIFT][idx & PIW_PAGE_MASK];
         assert (piw != SH2_NOT_VISITED
                 ? piw.pcMasked == (pc & Sh2Debug.pcAreaMaskMap[pc >>> S32xDict.SH2_PC_AREA_SHIFT]) : true) : th(piwPc) + "," + th(piw.pcMasked);
         return piw;
@@ -155,9 +172,14 @@ public class Sh2Helper {
         Sh2PcInfoWrapper piw = get(pc, cpu);
         assert piw != null;
         if (piw == SH2_NOT_VISITED) {
-            final int piwPc = pc | cpu.ordinal();
             piw = new Sh2PcInfoWrapper(pc >>> S32xDict.SH2_PC_AREA_SHIFT, pc & Sh2Debug.pcAreaMaskMap[pc >>> S32xDict.SH2_PC_AREA_SHIFT]);
-            piwArr[piw.area][piw.pcMasked | cpu.ordinal()] = piw;
+            final int idx = piw.pcMasked | cpu.ordinal();
+            Sh2PcInfoWrapper[] page = piwArr[piw.area][idx >>> PIW_PAGE_SHIFT];
+            if (page == NOT_VISITED_PAGE) {
+                page = createNotVisitedPage();
+                piwArr[piw.area][idx >>> PIW_PAGE_SHIFT] = page;
+            }
+            page[idx & PIW_PAGE_MASK] = piw;
         }
         assert piw.pcMasked == (pc & Sh2Debug.pcAreaMaskMap[pc >>> S32xDict.SH2_PC_AREA_SHIFT]);
         return piw;
@@ -151,13 +151,19 @@ public class Sh2Impl implements Sh2 {
 	}
 
 	private void runBlock(final FetchResult fr) {
+		final Sh2Block startBlock = fr.block;
+		final int startCycles = ctx.cycles;
+		fr.block.runBlock(this, ctx.devices.sh2MMREG);
+		//drc blocks can chain to the next block, fr.block is the last block that ran
 		final Sh2Block block = fr.block;
-		block.runBlock(this, ctx.devices.sh2MMREG);
 		//looping on the same block
 		if (ctx.PC == block.prefetchPc) {
 			assert block.isValid();
 			block.nextBlock = fr.block;
 			block.poller.spinCount++;
+			if (block.delayLoopReg >= 0 && block == startBlock) {
+				Ow2DrcOptimizer.skipDelayLoop(block, ctx, startCycles - ctx.cycles);
+			}
 			if (sh2Config.pollDetectEn) {
 				Ow2DrcOptimizer.handlePoll(block);
 			}
@@ -8,6 +8,7 @@ import s32x.Sh2MMREG;
 import s32x.bus.Sh2Bus;
 import s32x.bus.Sh2MemoryParallel;
 import s32x.dict.S32xDict;
+import s32x.event.PollSysEventManager;
 import s32x.util.Md32xRuntimeData;
 import s32x.util.S32xUtil;
 
@@ -17,6 +18,8 @@ import static omegadrive.util.Util.readBufferLong;
 import static omegadrive.util.Util.th;
 import static s32x.dict.Sh2Dict.RegSpecSh2;
 import static s32x.dict.Sh2Dict.RegSpecSh2.*;
+import static s32x.util.S32xUtil.CpuDeviceAccess.MASTER;
+import static s32x.util.S32xUtil.CpuDeviceAccess.SLAVE;
 
 /**
  * Federico Berti
@@ -30,6 +33,8 @@ public class DmaC implements S32xUtil.Sh2Device {
     private static final Logger LOG = LogHelper.getLogger(DmaC.class.getSimpleName());
 
     private static final int SH2_CHCR_TRANSFER_END_BIT = 1;
+    //one step every 3 sh2 cycles
+    private static final int SH2_CYCLES_PER_STEP = 3;
     private static final boolean verbose = false;
 
     private final ByteBuffer regs;
@@ -74,13 +79,121 @@ public class DmaC implements S32xUtil.Sh2Device {
         if (!oneDmaInProgress) {
             return;
         }
+        final int steps = Math.max(1, cycles / SH2_CYCLES_PER_STEP);
         for (DmaHelper.DmaChannelSetup c : dmaChannelSetup) {
-            if (c.dmaInProgress && (c.chcr_autoReq || c.dreqLevel)) {
+            if (!isStepping(c)) {
+                continue;
+            }
+            if (c.bulkStepsLeft > 0 || startBulk(c)) {
+                bulkSteps(c, steps);
+                continue;
+            }
+            //see getCyclesToNextEvent, a single step unless the channel could not start in bulk
+            for (int i = 0; i < steps && isStepping(c); i++) {
                 dmaOneStep(c);
             }
         }
     }
 
+    /**
+     * Sh2 cycles until a step that needs to run on its own: the first and last step of a bulk transfer,
+     * any step otherwise. Integer.MAX_VALUE when no channel is transferring.
+     */
+    public int getCyclesToNextEvent() {
+        if (!oneDmaInProgress) {
+            return Integer.MAX_VALUE;
+        }
+        int next = Integer.MAX_VALUE;
+        for (DmaHelper.DmaChannelSetup c : dmaChannelSetup) {
+            if (isStepping(c)) {
+                //the bulk copy happens on the first step and can wake up a sh2
+                final int steps = c.bulkStepsLeft > 0 ? c.bulkStepsLeft : 1;
+                //TE and the dma interrupt happen on the last step
+                next = Math.min(next, steps * SH2_CYCLES_PER_STEP - 2);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Auto-request, one unit per step, memory only and no sdram poller to wake up.
+     */
+    private boolean canBulk(DmaHelper.DmaChannelSetup c) {
+        final int len = getLen(c);
+        if (!c.chcr_autoReq || c.transfersPerStep > 1 || len == 0 || isSdramPollerActive()) {
+            return false;
+        }
+        final int src = readBufferForChannel(c.channel, DMA_SAR0.addr, Size.LONG) | S32xDict.SH2_CACHE_THROUGH_OFFSET;
+        final int dest = readBufferForChannel(c.channel, DMA_DAR0.addr, Size.LONG) | S32xDict.SH2_CACHE_THROUGH_OFFSET;
+        return isMemory(src, src + (len - 1) * c.srcDelta, true) &&
+                isMemory(dest, dest + (len - 1) * c.destDelta, false);
+    }
+
+    /**
+     * The whole transfer is done up front, the channel then counts down the steps and ends
+     * on the same cycle as a step by step transfer, see getCyclesToNextEvent.
+     * Incrementing sdram, frame buffer and rom ranges are copied in bulk, see Sh2Bus::copyMemory.
+     */
+    private boolean startBulk(DmaHelper.DmaChannelSetup c) {
+        if (!canBulk(c)) {
+            return false;
+        }
+        final int len = getLen(c);
+        final int unit = c.trnSize.getByteSize();
+        int srcAddress = readBufferForChannel(c.channel, DMA_SAR0.addr, Size.LONG) | S32xDict.SH2_CACHE_THROUGH_OFFSET;
+        int destAddress = readBufferForChannel(c.channel, DMA_DAR0.addr, Size.LONG) | S32xDict.SH2_CACHE_THROUGH_OFFSET;
+        assert cpu == Md32xRuntimeData.getAccessTypeExt();
+        if (c.srcDelta != unit || c.destDelta != unit || !memory.copyMemory(srcAddress, destAddress, len * unit, c.trnSize)) {
+            for (int i = 0; i < len; i++) {
+                memory.write(destAddress, memory.read(srcAddress, c.trnSize), c.trnSize);
+                srcAddress += c.srcDelta;
+                destAddress += c.destDelta;
+            }
+        }
+        if (verbose) LOG.info("{} DMA bulk, len: {}, {}", cpu, th(len), c);
+        c.bulkStepsLeft = len;
+        return true;
+    }
+
+    //the data has already been moved, only the registers advance
+    private void bulkSteps(DmaHelper.DmaChannelSetup c, int steps) {
+        final int n = Math.min(steps, c.bulkStepsLeft);
+        final int srcAddress = readBufferForChannel(c.channel, DMA_SAR0.addr, Size.LONG) | S32xDict.SH2_CACHE_THROUGH_OFFSET;
+        final int destAddress = readBufferForChannel(c.channel, DMA_DAR0.addr, Size.LONG) | S32xDict.SH2_CACHE_THROUGH_OFFSET;
+        c.bulkStepsLeft -= n;
+        writeBufferForChannel(c.channel, DMA_SAR0.addr, srcAddress + n * c.srcDelta, Size.LONG);
+        writeBufferForChannel(c.channel, DMA_DAR0.addr, destAddress + n * c.destDelta, Size.LONG);
+        writeBufferForChannel(c.channel, DMA_TCR0.addr, c.bulkStepsLeft, Size.LONG);
+        if (c.bulkStepsLeft == 0) {
+            dmaEnd(c, true);
+        }
+    }
+
+    private static boolean isStepping(DmaHelper.DmaChannelSetup c) {
+        return c.dmaInProgress && (c.chcr_autoReq || c.dreqLevel);
+    }
+
+    //sdram, frame buffer and overwrite image, rom when reading
+    private static boolean isMemory(int start, int end, boolean src) {
+        final int lo = Math.min(start, end), hi = Math.max(start, end) + 3;
+        return (lo >= S32xDict.SH2_START_SDRAM && hi < S32xDict.SH2_END_SDRAM) ||
+                (lo >= S32xDict.START_DRAM && hi < S32xDict.END_DRAM_OVER_MIRROR) ||
+                (src && lo >= S32xDict.SH2_START_ROM && hi < S32xDict.SH2_END_ROM);
+    }
+
+    private static boolean isSdramPollerActive() {
+        final PollSysEventManager m = PollSysEventManager.instance;
+        if (m.anyPollerActive() == 0) {
+            return false;
+        }
+        return (m.getPoller(MASTER).isPollingActive() && m.getPoller(MASTER).event == PollSysEventManager.SysEvent.SDRAM) ||
+                (m.getPoller(SLAVE).isPollingActive() && m.getPoller(SLAVE).event == PollSysEventManager.SysEvent.SDRAM);
+    }
+
+    private int getLen(DmaHelper.DmaChannelSetup c) {
+        return readBufferForChannel(c.channel, DMA_TCR0.addr, Size.LONG) & 0xFF_FFFF;
+    }
+
     private void writeSh2(S32xUtil.CpuDeviceAccess cpu, RegSpecSh2 regSpec, int value, Size size) {
         switch (regSpec) {
             case DMA_CHCR0, DMA_CHCR1 -> {
@@ -195,6 +308,8 @@ public class DmaC implements S32xUtil.Sh2Device {
         if (c.dmaInProgress) {
             c.dmaInProgress = false;
             c.dreqLevel = false;
+            //an aborted bulk transfer has already moved all the data
+            c.bulkStepsLeft = 0;
             updateOneDmaInProgress();
             if (!c.chcr_autoReq) {
                 dma68k.dmaEnd();
@@ -222,6 +337,7 @@ public class DmaC implements S32xUtil.Sh2Device {
         S32xUtil.writeBufferRaw(regs, DMA_DRCR0.addr, 0, Size.BYTE);
         S32xUtil.writeBufferRaw(regs, DMA_DRCR1.addr, 0, Size.BYTE);
         S32xUtil.writeBufferRaw(regs, DMA_DMAOR.addr, 0, Size.LONG);
+        dmaChannelSetup[0].bulkStepsLeft = dmaChannelSetup[1].bulkStepsLeft = 0;
         oneDmaInProgress = false;
     }
 
@@ -87,6 +87,8 @@ public class DmaHelper {
         public DmaTransferSize chcr_transferSize;
         public boolean dmaInProgress;
         public int srcDelta, destDelta, transfersPerStep;
+        //steps to go of a transfer whose data has already been copied, see DmaC::startBulk
+        public int bulkStepsLeft;
         public Size trnSize;
 
         @Override
@@ -106,6 +108,7 @@ public class DmaHelper {
                     ", srcDelta=" + srcDelta +
                     ", destDelta=" + destDelta +
                     ", transfersPerStep=" + transfersPerStep +
+                    ", bulkStepsLeft=" + bulkStepsLeft +
                     ", trnSize=" + trnSize +
                     '}';
         }
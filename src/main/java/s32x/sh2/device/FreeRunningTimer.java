@@ -23,7 +23,7 @@ public class FreeRunningTimer implements S32xUtil.Sh2Device {
 
     /**
      * Looks like 32x sw is not using it as a timer.
-     * Disable it due to perf impact.
+     * Disable it due to perf impact, Sh2MMREG only steps it when enabled.
      */
     public static final boolean SH2_ENABLE_FRT = Boolean.parseBoolean(System.getProperty("helios.32x.sh2.frt", "false"));
 
@@ -57,7 +57,7 @@ public class FreeRunningTimer implements S32xUtil.Sh2Device {
     private final S32xUtil.CpuDeviceAccess cpu;
     private final IntControl intControl;
 
-    private int ocra, ocrb;
+    private int ocra, ocrb, tier;
     private boolean isOcra;
     private int count = 0, clockDivider = 0;
     private int sh2TicksToNextFrtClock;
@@ -73,6 +73,9 @@ public class FreeRunningTimer implements S32xUtil.Sh2Device {
         assert address == regSpec.addr : th(address) + ", " + th(regSpec.addr);
         if (verbose) LOG.info("{} FRT read {}: {}", cpu, regSpec.getName(), size);
         switch (regSpec) {
+            case FRT_FRCH -> {
+                return size == Size.WORD ? count : count >> 8;
+            }
             case FRT_OCRAB_H -> {
                 int ref = isOcra ? ocra : ocrb;
                 return size == Size.WORD ? ref : ref >> 8;
@@ -97,14 +100,15 @@ public class FreeRunningTimer implements S32xUtil.Sh2Device {
                 S32xUtil.writeBufferRaw(regs, pos, value | TOCR_DEFAULT, size);
             }
             case FRT_OCRAB_H, FRT_OCRAB_L -> {
-                int val = S32xUtil.readBuffer(regs, FRT_OCRAB_H.addr, Size.WORD);
+                //readBuffer sign extends
+                int val = S32xUtil.readBuffer(regs, FRT_OCRAB_H.addr, Size.WORD) & 0xFFFF;
                 if (isOcra) {
                     ocra = val;
                 } else {
                     ocrb = val;
                 }
             }
-            case FRT_FRCH, FRT_FRCL -> count = S32xUtil.readBuffer(regs, FRT_FRCH.addr, Size.WORD);
+            case FRT_FRCH, FRT_FRCL -> count = S32xUtil.readBuffer(regs, FRT_FRCH.addr, Size.WORD) & 0xFFFF;
             case FRT_TCR -> {
                 assert size == Size.BYTE;
                 clockDivider = clockDivs[value & 3];
@@ -113,58 +117,76 @@ public class FreeRunningTimer implements S32xUtil.Sh2Device {
             case FRT_TIER -> {
                 assert size == Size.BYTE;
                 //x000xxx1
-                S32xUtil.writeBufferRaw(regs, pos, (value & 0x8e) | 1, size);
+                tier = (value & 0x8e) | 1;
+                S32xUtil.writeBufferRaw(regs, pos, tier, size);
             }
             case FRT_FTCSR -> {
                 assert size == Size.BYTE && value <= 1;
-                LOG.info("write FTCSR: {} {}", th(value), size);
+                if (verbose) LOG.info("{} write FTCSR: {} {}", cpu, th(value), size);
             }
         }
     }
 
     @Override
     public void step(int cycles) {
-        if (SH2_ENABLE_FRT) {
-            while (cycles-- > 0) {
-                stepOne();
+        while (cycles >= sh2TicksToNextFrtClock) {
+            cycles -= sh2TicksToNextFrtClock;
+            sh2TicksToNextFrtClock = clockDivider;
+            //clocks before the next compare match or overflow only increase the counter, the current one included
+            final int quiet = Math.min(clocksToNextEvent() - 1, 1 + cycles / clockDivider);
+            if (quiet > 0) {
+                count = (count + quiet) & 0xFFFF;
+                S32xUtil.writeBufferRaw(regs, FRT_FRCH.addr, count, Size.WORD);
+                cycles -= (quiet - 1) * clockDivider;
+            } else {
+                clock();
             }
         }
+        sh2TicksToNextFrtClock -= cycles;
     }
 
-    private void stepOne() {
-        if (--sh2TicksToNextFrtClock == 0) {
-            sh2TicksToNextFrtClock = clockDivider;
-            int cnt = increaseCount();
-            if (cnt == 0) { //overflow
-                S32xUtil.setBit(regs, FRT_FTCSR.addr, FTCSR_OVF_BIT, 1, Size.BYTE);
-                boolean ovie = (read(FRT_TIER, Size.BYTE) & TIER_OVIE_MASK) > 0;
-                if (ovie) {
-                    System.out.println("ovie");
+    /**
+     * Sh2 cycles until the next compare match or overflow.
+     */
+    public int getCyclesToNextEvent() {
+        return sh2TicksToNextFrtClock + (clocksToNextEvent() - 1) * clockDivider;
+    }
+
+    //clocks until the counter matches ocra, ocrb or overflows
+    private int clocksToNextEvent() {
+        final int next = count + 1;
+        return 1 + Math.min(((ocra - next) & 0xFFFF), Math.min((ocrb - next) & 0xFFFF, -next & 0xFFFF));
+    }
+
+    private void clock() {
+        final int cnt = increaseCount() & 0xFFFF;
+        if (cnt == 0) { //overflow
+            S32xUtil.setBit(regs, FRT_FTCSR.addr, FTCSR_OVF_BIT, 1, Size.BYTE);
+            boolean ovie = (tier & TIER_OVIE_MASK) > 0;
+            if (ovie) {
+                if (verbose) LOG.info("{} FRT {} interrupt, not raised", cpu, "OVI");
 //                    intControl.setExternalIntPending(FRT, 0, true);
-                }
             }
-            int ocra = read(FRT_OCRAB_H, Size.WORD);
-            if (cnt == ocra) {
-                S32xUtil.setBit(regs, FRT_FTCSR.addr, FTCSR_OCFA_BIT, 1, Size.BYTE);
-                boolean ociae = (read(FRT_TIER, Size.BYTE) & TIER_OCIAE_MASK) > 0;
-                if (ociae) {
-                    System.out.println("ociae");
+        }
+        if (cnt == ocra) {
+            S32xUtil.setBit(regs, FRT_FTCSR.addr, FTCSR_OCFA_BIT, 1, Size.BYTE);
+            boolean ociae = (tier & TIER_OCIAE_MASK) > 0;
+            if (ociae) {
+                if (verbose) LOG.info("{} FRT {} interrupt, not raised", cpu, "OCIA");
 //                    intControl.setExternalIntPending(FRT, 0, true);
-                }
-                boolean cclra = (read(FRT_FTCSR, Size.BYTE) & FTCSR_CCLRA_MASK) > 0;
-                if (cclra) {
+            }
+            boolean cclra = (read(FRT_FTCSR, Size.BYTE) & FTCSR_CCLRA_MASK) > 0;
+            if (cclra) {
 //                    System.out.println("cclra");
-                    write(FRT_FRCH, 0, Size.WORD);
-                }
+                write(FRT_FRCH, 0, Size.WORD);
             }
-            int ocrb = read(FRT_OCRAB_H, Size.WORD);
-            if (cnt == ocrb) {
-                S32xUtil.setBit(regs, FRT_FTCSR.addr, FTCSR_OCFB_BIT, 1, Size.BYTE);
-                boolean ocibe = (read(FRT_TIER, Size.BYTE) & TIER_OCIBE_MASK) > 0;
-                if (ocibe) {
-                    System.out.println("ocibe");
+        }
+        if (cnt == ocrb) {
+            S32xUtil.setBit(regs, FRT_FTCSR.addr, FTCSR_OCFB_BIT, 1, Size.BYTE);
+            boolean ocibe = (tier & TIER_OCIBE_MASK) > 0;
+            if (ocibe) {
+                if (verbose) LOG.info("{} FRT {} interrupt, not raised", cpu, "OCIB");
 //                    intControl.setExternalIntPending(FRT, 0, true);
-                }
             }
         }
     }
@@ -149,28 +149,30 @@ public class WatchdogTimer implements S32xUtil.Sh2Device {
 
     @Override
     public void step(int cycles) {
-        if (wdtTimerEnable) {
-            while (cycles-- > 0) {
-                stepOne();
-            }
+        if (!wdtTimerEnable) {
+            return;
         }
-    }
-
-    private void stepOne() {
         assert sh2TicksToNextWdtClock > 0;
-        if (--sh2TicksToNextWdtClock == 0) {
-            sh2TicksToNextWdtClock = clockDivider;
-            int cnt = increaseCount();
-            if (cnt == 0) { //overflow
-                S32xUtil.setBit(regs, WTCSR_ADDR_READ, OVF_BIT_POS, 1, Size.BYTE);
-                intControl.setOnChipDeviceIntPending(Sh2DeviceHelper.Sh2DeviceType.WDT);
-            }
+        if (cycles < sh2TicksToNextWdtClock) {
+            sh2TicksToNextWdtClock -= cycles;
+            return;
+        }
+        cycles -= sh2TicksToNextWdtClock;
+        final int clocks = 1 + cycles / clockDivider;
+        sh2TicksToNextWdtClock = clockDivider - cycles % clockDivider;
+        final int prev = count;
+        count = (count + clocks) & 0xFF;
+        if (prev + clocks > 0xFF) { //overflow
+            S32xUtil.setBit(regs, WTCSR_ADDR_READ, OVF_BIT_POS, 1, Size.BYTE);
+            intControl.setOnChipDeviceIntPending(Sh2DeviceHelper.Sh2DeviceType.WDT);
         }
     }
 
-    private int increaseCount() {
-        count = (count + 1) & 0xFF;
-        return count;
+    /**
+     * Sh2 cycles until the next overflow, Integer.MAX_VALUE when the timer is disabled.
+     */
+    public int getCyclesToNextEvent() {
+        return wdtTimerEnable ? sh2TicksToNextWdtClock + (0xFF - count) * clockDivider : Integer.MAX_VALUE;
     }
 
     @Override
@@ -0,0 +1,270 @@
+package s32x.sh2.drc;
+
+import omegadrive.util.LogHelper;
+import omegadrive.util.Util;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import static omegadrive.util.Util.th;
+
+/**
+ * Federico Berti
+ * <p>
+ * Copyright 2023
+ * <p>
+ * On-disk cache of the drc classes, a class is stored the first time a block is compiled and
+ * reloaded on the next run instead of generating it again.
+ * <p>
+ * A class is identified by a key: cpu, pc, block flags, block words and the recompiler flags, see
+ * {@link #createKey}. The class name is derived from the key, the key itself is stored in the file
+ * and compared on load, any mismatch (version, key, crc) discards the file.
+ * The oldest files are deleted when the folder grows past the max size.
+ */
+public class Ow2DrcClassCache {
+
+    private static final Logger LOG = LogHelper.getLogger(Ow2DrcClassCache.class.getSimpleName());
+
+    //folder, empty to disable
+    public static final String SH2_DRC_CLASS_CACHE_FOLDER = System.getProperty("helios.32x.sh2.drc.classCache", "");
+    public static final boolean SH2_DRC_CLASS_CACHE = !SH2_DRC_CLASS_CACHE_FOLDER.isBlank();
+    public static final long SH2_DRC_CLASS_CACHE_MAX_SIZE =
+            Long.parseLong(System.getProperty("helios.32x.sh2.drc.classCache.maxSizeKb", "32768")) << 10;
+
+    //bump when the generated code changes
+    public static final int VERSION = 4;
+    private static final int MAGIC = 0x48333244; //H32D
+    private static final String EXT = ".drc";
+    private static final boolean verbose = false;
+
+    private final Path folder;
+    private final long maxSize;
+    private final Set<String> onDisk = new HashSet<>();
+    private final Map<String, DefinedClass> defined = new HashMap<>();
+    private long sizeOnDisk;
+    public int hits, misses;
+
+    public static class DefinedClass {
+        public final byte[] key;
+        public final Class<?> clazz;
+
+        public DefinedClass(byte[] key, Class<?> clazz) {
+            this.key = key;
+            this.clazz = clazz;
+        }
+    }
+
+    public Ow2DrcClassCache(Path folder, long maxSize) {
+        this.folder = folder;
+        this.maxSize = maxSize;
+        File f = folder.toFile();
+        if (!f.mkdirs() && !f.isDirectory()) {
+            throw new RuntimeException("Unable to create drc class cache: " + folder.toAbsolutePath());
+        }
+        File[] files = Objects.requireNonNull(f.listFiles((d, n) -> n.endsWith(EXT)));
+        for (File file : files) {
+            onDisk.add(file.getName().substring(0, file.getName().length() - EXT.length()));
+            sizeOnDisk += file.length();
+        }
+        LOG.info("Drc class cache: {}, classes: {}, size: {}Kb", folder.toAbsolutePath(), onDisk.size(), sizeOnDisk >> 10);
+    }
+
+    public static Ow2DrcClassCache createMaybe() {
+        return SH2_DRC_CLASS_CACHE ? new Ow2DrcClassCache(Paths.get(SH2_DRC_CLASS_CACHE_FOLDER), SH2_DRC_CLASS_CACHE_MAX_SIZE) : null;
+    }
+
+    public static byte[] createKey(String cpuCode, Sh2Block block, int recompilerFlags) {
+        ByteBuffer bb = ByteBuffer.allocate(32 + (block.prefetchLenWords << 1));
+        bb.putInt(VERSION);
+        bb.putInt(cpuCode.hashCode());
+        bb.putInt(block.prefetchPc);
+        bb.putInt(block.hashCodeWords);
+        bb.putInt(block.blockFlags & (Sh2Block.NO_JUMP_FLAG | Sh2Block.SUPERBLOCK_FLAG));
+        bb.putInt(recompilerFlags);
+        bb.putInt(block.prefetchLenWords);
+        for (int i = 0; i < block.prefetchLenWords; i++) {
+            bb.putShort((short) block.prefetchWords[i]);
+        }
+        return Arrays.copyOf(bb.array(), bb.position());
+    }
+
+    /**
+     * Simple name of the class, the same key always gets the same name.
+     */
+    public static String className(String cpuCode, int pc, byte[] key) {
+        CRC32 crc = new CRC32();
+        crc.update(key);
+        long h = ((long) Arrays.hashCode(key) << 32) | crc.getValue();
+        return cpuCode + "_" + th(pc) + "_" + Long.toHexString(h);
+    }
+
+    /**
+     * A class with this name and key has already been defined by the recompiler.
+     */
+    public Class<?> getDefined(String name, byte[] key) {
+        DefinedClass dc = defined.get(name);
+        return dc != null && Arrays.equals(dc.key, key) ? dc.clazz : null;
+    }
+
+    public boolean isDefined(String name) {
+        return defined.containsKey(name);
+    }
+
+    public void putDefined(String name, byte[] key, Class<?> clazz) {
+        defined.put(name, new DefinedClass(key, clazz));
+    }
+
+    //the classLoader has changed
+    public void clearDefined() {
+        defined.clear();
+    }
+
+    /**
+     * Returns the class bytes or null if missing or not valid.
+     */
+    public byte[] load(String name, byte[] key) {
+        if (!onDisk.contains(name)) {
+            misses++;
+            return null;
+        }
+        Path p = getPath(name);
+        //evicted
+        if (!Files.isRegularFile(p)) {
+            onDisk.remove(name);
+            misses++;
+            return null;
+        }
+        byte[] res = null;
+        try {
+            res = decode(Files.readAllBytes(p), key);
+        } catch (IOException e) {
+            LOG.error("Unable to read: {}", p.toAbsolutePath(), e);
+        }
+        if (res == null) {
+            LOG.warn("Discarding drc class: {}", p.toAbsolutePath());
+            discard(name);
+            misses++;
+            return null;
+        }
+        //recently used files are evicted last
+        boolean ok = p.toFile().setLastModified(System.currentTimeMillis());
+        hits++;
+        if (verbose) LOG.info("Drc class cache hit: {}, touch: {}", name, ok);
+        return res;
+    }
+
+    public void store(String name, byte[] key, byte[] classBytes) {
+        if (onDisk.contains(name)) {
+            return;
+        }
+        onDisk.add(name);
+        final byte[] data = encode(key, classBytes);
+        sizeOnDisk += data.length;
+        final boolean evict = sizeOnDisk > maxSize;
+        if (evict) {
+            sizeOnDisk = evictTarget();
+        }
+        //single thread, see FileUtil::writeFileSafe
+        Util.executorService.submit(() -> {
+            write(name, data);
+            if (evict) {
+                evict();
+            }
+        });
+    }
+
+    public void discard(String name) {
+        onDisk.remove(name);
+        Util.executorService.submit(() -> {
+            try {
+                Files.deleteIfExists(getPath(name));
+            } catch (IOException e) {
+                LOG.error("Unable to delete: {}", name, e);
+            }
+        });
+    }
+
+    void write(String name, byte[] data) {
+        Path p = getPath(name);
+        try {
+            Files.write(p, data);
+            if (verbose) LOG.info("Drc class stored: {}", p.toAbsolutePath());
+        } catch (IOException e) {
+            LOG.error("Unable to write: {}", p.toAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Deletes the least recently used files until the folder is at 75% of maxSize.
+     */
+    long evict() {
+        File[] files = folder.toFile().listFiles((d, n) -> n.endsWith(EXT));
+        if (files == null) {
+            return 0;
+        }
+        long total = Arrays.stream(files).mapToLong(File::length).sum();
+        final long target = evictTarget();
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        int cnt = 0;
+        for (int i = 0; i < files.length && total > target; i++) {
+            long len = files[i].length();
+            if (files[i].delete()) {
+                total -= len;
+                cnt++;
+            }
+        }
+        LOG.info("Drc class cache, evicted: {}, size: {}Kb", cnt, total >> 10);
+        return total;
+    }
+
+    private long evictTarget() {
+        return maxSize - (maxSize >> 2);
+    }
+
+    static byte[] encode(byte[] key, byte[] classBytes) {
+        ByteBuffer bb = ByteBuffer.allocate(24 + key.length + classBytes.length);
+        bb.putInt(MAGIC).putInt(VERSION);
+        bb.putInt(key.length).put(key);
+        bb.putInt(classBytes.length).put(classBytes);
+        bb.putLong(crc(key, classBytes));
+        return bb.array();
+    }
+
+    static byte[] decode(byte[] data, byte[] expKey) {
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        if (data.length < 24 || bb.getInt() != MAGIC || bb.getInt() != VERSION) {
+            return null;
+        }
+        int keyLen = bb.getInt();
+        if (keyLen != expKey.length || keyLen > bb.remaining()) {
+            return null;
+        }
+        byte[] key = new byte[keyLen];
+        bb.get(key);
+        int classLen = bb.getInt();
+        if (!Arrays.equals(key, expKey) || classLen < 0 || classLen != bb.remaining() - 8) {
+            return null;
+        }
+        byte[] classBytes = new byte[classLen];
+        bb.get(classBytes);
+        return bb.getLong() == crc(key, classBytes) ? classBytes : null;
+    }
+
+    private static long crc(byte[] key, byte[] classBytes) {
+        CRC32 crc = new CRC32();
+        crc.update(key);
+        crc.update(classBytes);
+        return crc.getValue();
+    }
+
+    private Path getPath(String name) {
+        return folder.resolve(name + EXT);
+    }
+}
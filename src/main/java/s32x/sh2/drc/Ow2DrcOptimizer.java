@@ -7,21 +7,27 @@ import org.slf4j.Logger;
 import org.slf4j.event.Level;
 import s32x.dict.S32xDict;
 import s32x.event.PollSysEventManager;
+import s32x.sh2.Sh2;
 import s32x.sh2.Sh2Context;
 import s32x.sh2.Sh2Debug;
 import s32x.sh2.Sh2Disassembler;
 import s32x.sh2.Sh2Helper;
+import s32x.sh2.Sh2Instructions.Sh2BaseInstruction;
+import s32x.sh2.prefetch.Sh2Prefetcher.Sh2BlockUnit;
 import s32x.util.Md32xRuntimeData;
 import s32x.util.S32xUtil;
 
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringJoiner;
 import java.util.function.Predicate;
 
 import static omegadrive.util.Util.th;
 import static s32x.sh2.Sh2Impl.RM;
 import static s32x.sh2.Sh2Impl.RN;
+import static s32x.sh2.Sh2Instructions.Sh2BaseInstruction.*;
 import static s32x.sh2.drc.Ow2DrcOptimizer.PollType.*;
 
 /**
@@ -110,6 +116,15 @@ public class Ow2DrcOptimizer {
 
     private static final Predicate<Integer> isDtOpcode = op -> (op & 0xF0FF) == 0x4010;
 
+    //instructions that always overwrite the T flag
+    private static final Set<Sh2BaseInstruction> tFlagWriters = EnumSet.of(ADDC, ADDV, CLRT, CMPEQ, CMPGE, CMPGT,
+            CMPHI, CMPHS, CMPIM, CMPPL, CMPPZ, CMPSTR, DIV0S, DIV0U, DIV1, DT, LDCMSR, LDCSR, NEGC, ROTCL, ROTCR, ROTL,
+            ROTR, SETT, SHAL, SHAR, SHLL, SHLR, SUBC, SUBV, TAS, TST, TSTI, TSTM);
+
+    //instructions that look at the T flag, or at SR as a whole
+    private static final Set<Sh2BaseInstruction> tFlagReaders = EnumSet.of(ADDC, BF, BFS, BT, BTS, DIV1, ILLEGAL,
+            MOVT, NEGC, ROTCL, ROTCR, SLEEP, STCMSR, STCSR, SUBC, TRAPA);
+
     public static class BlockPollData {
         public int memLoadPos = -1, memLoadOpcode, cmpPos = -1, cmpOpcode, branchPos = -1,
                 branchOpcode, branchPc, branchDestPc;
@@ -415,9 +430,6 @@ public class Ow2DrcOptimizer {
                 logPollBlock(block, bpd, false);
             }
         }
-//        if(block.pollType == NONE){
-//            detectDelayLoop(bpd);
-//        }
         assert block.pollType != UNKNOWN;
         assert toSet != null;
         return toSet;
@@ -431,23 +443,60 @@ public class Ow2DrcOptimizer {
                     Sh2Helper.toListOfInst(block));
     }
 
-    private static void detectDelayLoop(BlockPollData bpd) {
-        int decreaseOpPos = -1;
-        for (int i = 0; i < bpd.words.length; i++) {
-            if ((bpd.words[i] & 0xF0FF) == 0x4010) {
-                decreaseOpPos = i;
+    /**
+     * Delay loop: nops, dt Rn and a bf (or bf/s + nop) back to the start of the block.
+     * Returns n, -1 if the block is not a delay loop.
+     * <p>
+     * 06000f10	4110	dt R1
+     * 06000f12	8bfd	bf H'06000f10
+     */
+    public static int detectDelayLoop(Sh2Block block) {
+        final int[] words = block.prefetchWords;
+        final int len = block.prefetchLenWords;
+        int dtReg = -1, branchPos = -1;
+        for (int i = 0; i < len; i++) {
+            final int op = words[i];
+            if (op == Sh2Disassembler.NOP) {
+                continue;
             }
-        }
-        if (decreaseOpPos > 0 && bpd.memLoadPos < 0 &&
-                bpd.branchPos >= 0 && bpd.branchDestPc == bpd.pc) { // && bpd.numNops + 1 == bpd.words.length){
-            String instList = Sh2Helper.toListOfInst(bpd.block).toString();
-            boolean match = !instList.contains("mov");
-            if (match) {
-                LOG.error("{} Delay Loop?? at PC {}: {} {}\n{}", bpd.block.drcContext.cpu,
-                        th(bpd.block.prefetchPc),
-                        th(bpd.memLoadTarget), bpd.block.pollType, instList);
+            if (isDtOpcode.test(op) && dtReg < 0 && branchPos < 0) {
+                dtReg = RN(op);
+            } else if (((op & 0xFF00) == 0x8B00 || (op & 0xFF00) == 0x8F00) && dtReg >= 0 && branchPos < 0) {
+                branchPos = i;
+            } else {
+                return -1;
             }
         }
+        if (branchPos < 0) {
+            return -1;
+        }
+        final boolean delaySlot = (words[branchPos] & 0xFF00) == 0x8F00;
+        if (branchPos != len - (delaySlot ? 2 : 1) ||
+                getBranchDestination(words[branchPos], block.prefetchPc + (branchPos << 1)) != block.prefetchPc) {
+            return -1;
+        }
+        if (verbose) LOG.info("{} Delay loop detected: {}\n{}", block.getCpu(), th(block.prefetchPc),
+                Sh2Helper.toListOfInst(block));
+        return dtReg;
+    }
+
+    /**
+     * The delay loop has just looped back, taking iterCycles; the iterations that fit in the
+     * current burst are skipped: the dt register and the cycles are updated in one step.
+     * The last iteration, where dt reaches zero, always runs.
+     * Nothing else can change within the burst, apart from a pending interrupt which stops the skip.
+     */
+    public static void skipDelayLoop(Sh2Block block, Sh2Context ctx, int iterCycles) {
+        if (iterCycles <= 0 || ctx.cycles < 0 || Md32xRuntimeData.getCpuDelayExt() != 0 ||
+                ctx.devices.intC.getInterruptLevel() > ((ctx.SR & Sh2.flagIMASK) >>> 4)) {
+            return;
+        }
+        final int reg = block.delayLoopReg;
+        //unsigned, iterations left before dt reaches zero
+        final long loops = (ctx.registers[reg] & 0xFFFF_FFFFL) - 1;
+        final int skip = (int) Math.min(loops, ctx.cycles / iterCycles + 1);
+        ctx.registers[reg] -= skip;
+        ctx.cycles -= skip * iterCycles;
     }
 
     //TODO poll on cached address??? tas poll is allowed even on cached addresses
@@ -565,4 +614,36 @@ public class Ow2DrcOptimizer {
             }
         }
     }
+
+    /**
+     * T flag liveness, the block is scanned backwards and T is considered live at the block exit.
+     * <p>
+     * Returns one entry per block instruction, true when the T value produced by that instruction
+     * is always overwritten before being consumed (ie. cmp/eq followed by another cmp/eq).
+     * Dead stores only, a live T is still written to SR by the instruction producing it.
+     */
+    public static boolean[] tFlagDeadMask(Sh2Block block) {
+        final Sh2BlockUnit[] inst = block.inst;
+        boolean[] dead = new boolean[inst.length];
+        int len = 0;
+        for (int i = 0; i < block.prefetchLenWords; i++) {
+            len = i + 1;
+            if (inst[i].inst.isBranchDelaySlot) {
+                len = Math.min(i + 2, inst.length);
+                break;
+            }
+        }
+        boolean live = true;
+        for (int i = len - 1; i >= 0; i--) {
+            Sh2BaseInstruction si = inst[i].inst;
+            if (tFlagWriters.contains(si)) {
+                dead[i] = !live;
+                live = false;
+            }
+            if (tFlagReaders.contains(si)) {
+                live = true;
+            }
+        }
+        return dead;
+    }
 }
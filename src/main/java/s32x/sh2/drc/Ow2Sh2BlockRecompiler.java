@@ -2,9 +2,11 @@ package s32x.sh2.drc;
 
 import omegadrive.util.FileUtil;
 import omegadrive.util.LogHelper;
+import omegadrive.util.PriorityThreadFactory;
 import omegadrive.util.Util;
 import org.objectweb.asm.*;
 import org.objectweb.asm.commons.LocalVariablesSorter;
+import org.objectweb.asm.tree.MethodNode;
 import org.objectweb.asm.util.ASMifier;
 import org.objectweb.asm.util.Textifier;
 import org.objectweb.asm.util.TraceClassVisitor;
@@ -20,9 +22,12 @@ import s32x.sh2.prefetch.Sh2Prefetcher.Sh2BlockUnit;
 
 import java.io.FileWriter;
 import java.io.PrintWriter;
+import java.lang.invoke.MethodHandles;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static omegadrive.util.Util.th;
 import static org.objectweb.asm.Opcodes.*;
@@ -41,7 +46,25 @@ public class Ow2Sh2BlockRecompiler {
     private static final Path drcFolder = Paths.get("./res/drc_" + System.currentTimeMillis());
     private final static boolean writeClass = false;
 
-    private final OwnClassLoader cl = new OwnClassLoader();
+    //dead store elimination on the T flag: skip updating it when the value is overwritten before being used,
+    //see Ow2DrcOptimizer::tFlagDeadMask. A live T stays in a local until SR is needed, see Ow2Sh2RegAlloc
+    public static final boolean SH2_DRC_DEAD_T_FLAG =
+            Boolean.parseBoolean(System.getProperty("helios.32x.sh2.drc.deadTFlag", "true"));
+
+    //blocks are hidden classes, they can be unloaded once the block is gone
+    public static final boolean SH2_DRC_HIDDEN_CLASS =
+            Boolean.parseBoolean(System.getProperty("helios.32x.sh2.drc.hiddenClass", "true"));
+
+    private static final ExecutorService compiler = Sh2Block.SH2_DRC_ASYNC ?
+            Executors.newSingleThreadExecutor(new PriorityThreadFactory(Thread.NORM_PRIORITY - 1, "drc")) : null;
+
+    //a new classLoader every N classes, the old one can be collected once its blocks are gone
+    public static final int SH2_DRC_CLASSES_PER_LOADER =
+            Integer.parseInt(System.getProperty("helios.32x.sh2.drc.classesPerLoader", "256"));
+
+    private OwnClassLoader cl = new OwnClassLoader();
+    private int loaderClasses;
+    private final Ow2DrcClassCache classCache = Ow2DrcClassCache.createMaybe();
 
     public static final String drcPackage = Ow2Sh2BlockRecompiler.class.getPackageName();
     public static final String intArrayDesc = Type.getDescriptor(int[].class);
@@ -84,17 +107,57 @@ public class Ow2Sh2BlockRecompiler {
         }
     }
 
+    /**
+     * Queues the block to the compiler thread, the class is generated from a snapshot of the block taken now.
+     * The result is installed by the emulation thread, see Sh2Block::installStage2.
+     */
+    public void createDrcClassAsync(Sh2Block block, Sh2DrcContext drcCtx) {
+        final Sh2Block code = block.stage2Snapshot();
+        final int generation = block.getGeneration();
+        compiler.execute(() -> {
+            Runnable r = null;
+            try {
+                r = createDrcClass(code, block, drcCtx);
+            } catch (Exception e) {
+                LOG.error("Unable to compile block at pc: {}", th(code.prefetchPc), e);
+            }
+            block.stage2Result = new Sh2Block.Stage2Result(generation, r);
+        });
+    }
+
     public Runnable createDrcClass(Sh2Block block, Sh2DrcContext drcCtx) {
-        String blockClass = drcPackage + "." + drcCtx.sh2Ctx.sh2TypeCode + "_" + th(block.prefetchPc) + "_" + System.nanoTime();
+        return createDrcClass(block, block, drcCtx);
+    }
+
+    /**
+     * The class and the loader are shared by the emulation thread and the drc thread, see SH2_DRC_ASYNC.
+     *
+     * @param code  the class is generated from this block
+     * @param block the block the instance runs for, might be changing while the drc thread is busy
+     */
+    private synchronized Runnable createDrcClass(Sh2Block code, Sh2Block block, Sh2DrcContext drcCtx) {
+        if (classCache != null) {
+            Runnable r = createDrcClassCached(code, block, drcCtx);
+            if (r != null) {
+                return r;
+            }
+        }
+        return createDrcClass(code, block, drcCtx, Ow2Sh2RegAlloc.SH2_DRC_REG_ALLOC);
+    }
+
+    //for testing, bypasses the class cache
+    Runnable createDrcClass(Sh2Block block, Sh2DrcContext drcCtx, boolean regAlloc) {
+        return createDrcClass(block, block, drcCtx, regAlloc);
+    }
+
+    private synchronized Runnable createDrcClass(Sh2Block code, Sh2Block block, Sh2DrcContext drcCtx, boolean regAlloc) {
+        String blockClass = drcPackage + "." + drcCtx.sh2Ctx.sh2TypeCode + "_" + th(code.prefetchPc) + "_" + System.nanoTime();
         Runnable r;
         try {
-            byte[] binc = createClassBinary(block, drcCtx, blockClass);
+            byte[] binc = createClassBinary(code, drcCtx, blockClass, regAlloc);
             writeClassMaybe(blockClass, binc);
-            Class<?> clazz = cl.defineClass(blockClass, binc);
-            Object b = clazz.getDeclaredConstructor(int[].class, int[].class, Sh2DrcContext.class).
-                    newInstance(drcCtx.sh2Ctx.registers, block.prefetchWords, drcCtx);
-            assert b instanceof Runnable;
-            r = (Runnable) b;
+            Class<?> clazz = defineClass(blockClass, binc);
+            r = newBlockInstance(clazz, code, block, drcCtx);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Fatal! ," + blockClass);
@@ -102,7 +165,82 @@ public class Ow2Sh2BlockRecompiler {
         return r;
     }
 
-    private static byte[] createClassBinary(Sh2Block block, Sh2DrcContext drcCtx, String blockClass) {
+    /**
+     * Reuses a class already defined for the same block, or loads it from the on-disk cache,
+     * see Ow2DrcClassCache. Returns null if the class should be generated the usual way.
+     */
+    private Runnable createDrcClassCached(Sh2Block code, Sh2Block block, Sh2DrcContext drcCtx) {
+        final String cpuCode = drcCtx.sh2Ctx.sh2TypeCode;
+        final byte[] key = Ow2DrcClassCache.createKey(cpuCode, code, getRecompilerFlags(drcCtx));
+        final String name = Ow2DrcClassCache.className(cpuCode, code.prefetchPc, key);
+        final String blockClass = drcPackage + "." + name;
+        Class<?> clazz = classCache.getDefined(name, key);
+        //name collision
+        if (clazz == null && classCache.isDefined(name)) {
+            return null;
+        }
+        try {
+            if (clazz == null) {
+                byte[] binc = classCache.load(name, key);
+                boolean fromDisk = binc != null;
+                if (!fromDisk) {
+                    binc = createClassBinary(code, drcCtx, blockClass, Ow2Sh2RegAlloc.SH2_DRC_REG_ALLOC);
+                    writeClassMaybe(blockClass, binc);
+                }
+                clazz = defineClass(blockClass, binc);
+                Runnable r = newBlockInstance(clazz, code, block, drcCtx);
+                //hidden classes are not kept around
+                if (!SH2_DRC_HIDDEN_CLASS) {
+                    classCache.putDefined(name, key, clazz);
+                }
+                if (!fromDisk) {
+                    classCache.store(name, key, binc);
+                }
+                return r;
+            }
+            return newBlockInstance(clazz, code, block, drcCtx);
+        } catch (Exception | LinkageError e) {
+            //a bad class from disk, generate a new one
+            LOG.error("Unable to load drc class: {}", blockClass, e);
+            classCache.discard(name);
+            //the name cannot be used again
+            classCache.putDefined(name, null, null);
+            return null;
+        }
+    }
+
+    /**
+     * A hidden class is only reachable via its instances, when a block is discarded the JVM can unload its class.
+     * Classes defined by OwnClassLoader stay around until the loader itself is collected, see SH2_DRC_CLASSES_PER_LOADER.
+     */
+    private Class<?> defineClass(String blockClass, byte[] binc) throws IllegalAccessException {
+        if (SH2_DRC_HIDDEN_CLASS) {
+            return MethodHandles.lookup().defineHiddenClass(binc, true).lookupClass();
+        }
+        if (++loaderClasses > SH2_DRC_CLASSES_PER_LOADER) {
+            cl = new OwnClassLoader();
+            loaderClasses = 1;
+            if (classCache != null) {
+                classCache.clearDefined();
+            }
+        }
+        return cl.defineClass(blockClass, binc);
+    }
+
+    private static Runnable newBlockInstance(Class<?> clazz, Sh2Block code, Sh2Block block, Sh2DrcContext drcCtx) throws Exception {
+        Object b = clazz.getDeclaredConstructor(int[].class, int[].class, Sh2DrcContext.class, Sh2Block.class).
+                newInstance(drcCtx.sh2Ctx.registers, code.prefetchWords, drcCtx, block);
+        assert b instanceof Runnable;
+        return (Runnable) b;
+    }
+
+    //anything that changes the generated code for a given block
+    private static int getRecompilerFlags(Sh2DrcContext drcCtx) {
+        return (Sh2Block.SH2_DRC_CHAIN ? 1 : 0) | (Ow2Sh2RegAlloc.SH2_DRC_REG_ALLOC ? 2 : 0) |
+                (SH2_DRC_DEAD_T_FLAG ? 4 : 0) | (drcCtx.memory instanceof Sh2BusImpl ? 8 : 0);
+    }
+
+    static byte[] createClassBinary(Sh2Block block, Sh2DrcContext drcCtx, String blockClass, boolean regAlloc) {
         String blockClassDesc = blockClass.replace('.', '/');
         memoryClass = drcCtx.memory instanceof Sh2BusImpl ? Sh2BusImpl.class : Sh2Bus.class;
         ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
@@ -116,13 +254,14 @@ public class Ow2Sh2BlockRecompiler {
             cw.visitField(ACC_PRIVATE | ACC_FINAL, sh2Context.name(), Type.getDescriptor(Sh2Context.class), null, null).visitEnd();
             cw.visitField(ACC_PRIVATE | ACC_FINAL, sh2MMREG.name(), Type.getDescriptor(Sh2MMREG.class), null, null).visitEnd();
             cw.visitField(ACC_PRIVATE | ACC_FINAL, memory.name(), Type.getDescriptor(memoryClass), null, null).visitEnd();
+            cw.visitField(ACC_PRIVATE | ACC_FINAL, sh2Block.name(), Type.getDescriptor(Sh2Block.class), null, null).visitEnd();
         }
         {
 
             // constructor
             MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, classConstructor,
                     Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(int[].class), Type.getType(int[].class),
-                            Type.getType(Sh2DrcContext.class)), null, null);
+                            Type.getType(Sh2DrcContext.class), Type.getType(Sh2Block.class)), null, null);
             mv.visitVarInsn(ALOAD, 0); // push `this` to the operand stack
             mv.visitMethodInsn(INVOKESPECIAL, Type.getInternalName(Object.class), classConstructor, noArgsNoRetDesc, false);// call the constructor of super class
             {
@@ -130,6 +269,7 @@ public class Ow2Sh2BlockRecompiler {
                 setClassField(mv, blockClassDesc, 1, regs, intArrayDesc);
                 setClassField(mv, blockClassDesc, 2, opcodes, intArrayDesc);
                 setClassField(mv, blockClassDesc, 3, sh2DrcContext, Type.getDescriptor(Sh2DrcContext.class));
+                setClassField(mv, blockClassDesc, 4, sh2Block, Type.getDescriptor(Sh2Block.class));
 
                 //set sh2Context
                 mv.visitVarInsn(ALOAD, 0); // push `this`
@@ -164,39 +304,10 @@ public class Ow2Sh2BlockRecompiler {
             mv.visitMaxs(0, 0);
             mv.visitEnd();
         }
-        {
+        if (!regAlloc || !createRunMethodRegAlloc(cw, block, drcCtx, blockClassDesc)) {
             MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_FINAL, runMethodName, noArgsNoRetDesc, null, null);
             LocalVariablesSorter lvs = new LocalVariablesSorter(ACC_PUBLIC | ACC_FINAL, noArgsNoRetDesc, mv);
-            int limit = block.prefetchWords.length;
-            BytecodeContext ctx = new BytecodeContext();
-            BytecodeContext dsCtx = new BytecodeContext();
-            ctx.classDesc = dsCtx.classDesc = blockClassDesc;
-            ctx.drcCtx = dsCtx.drcCtx = drcCtx;
-            ctx.mv = dsCtx.mv = lvs;
-            int totCycles = 0;
-            for (int i = 0; i < block.prefetchLenWords; i++) {
-                setDrcContext(ctx, block.inst[i], false);
-                if (ctx.sh2Inst.isBranchDelaySlot) {
-                    setDrcContext(dsCtx, block.inst[i + 1], true);
-                    ctx.delaySlotCtx = dsCtx;
-                    //LOG.info("Block at PC {}, setting delaySlot ctx\nctx {}\nds  {}", th(block.prefetchPc), ctx, dsCtx);
-                }
-                Ow2Sh2Helper.createInst(ctx);
-                //branch inst cycles taken are not known at this point
-                if (!ctx.sh2Inst.isBranch) {
-                    totCycles += ctx.sh2Inst.cycles;
-                }
-                //delay slot will be run within
-                if (ctx.sh2Inst.isBranchDelaySlot) {
-                    break;
-                }
-            }
-            if (block.isNoJump()) {
-                Ow2Sh2Bytecode.setPcExt(ctx, block.inst[limit - 1].pc + 2);
-            }
-            Ow2Sh2Bytecode.subCyclesExt(ctx, totCycles);
-            Ow2Sh2Bytecode.deviceStepFor(ctx, limit);
-            mv.visitInsn(RETURN);
+            createRunMethodBody(lvs, block, drcCtx, blockClassDesc);
             mv.visitMaxs(0, 0);
             mv.visitEnd();
         }
@@ -204,17 +315,84 @@ public class Ow2Sh2BlockRecompiler {
         return cw.toByteArray();
     }
 
+    /**
+     * Generates run() keeping the sh2 registers in locals, see Ow2Sh2RegAlloc.
+     * Returns false if the block cannot use register allocation, nothing is added to the class in that case.
+     */
+    private static boolean createRunMethodRegAlloc(ClassWriter cw, Sh2Block block, Sh2DrcContext drcCtx, String blockClassDesc) {
+        MethodNode mn = new MethodNode(ACC_PUBLIC | ACC_FINAL, runMethodName, noArgsNoRetDesc, null, null);
+        int[] regLocal = new int[16];
+        Ow2Sh2RegAlloc regAlloc = new Ow2Sh2RegAlloc(mn, blockClassDesc);
+        LocalVariablesSorter lvs = new LocalVariablesSorter(ACC_PUBLIC | ACC_FINAL, noArgsNoRetDesc, regAlloc);
+        //reserve the locals used by regAlloc, locals created by the block code are always remapped above these
+        for (int i = 0; i < regLocal.length; i++) {
+            regLocal[i] = lvs.newLocal(Type.INT_TYPE);
+        }
+        regAlloc.setLocals(regLocal, lvs.newLocal(Type.getType(int[].class)), lvs.newLocal(Type.INT_TYPE));
+        createRunMethodBody(lvs, block, drcCtx, blockClassDesc);
+        lvs.visitMaxs(0, 0);
+        if (regAlloc.isFailed()) {
+            return false;
+        }
+        regAlloc.finish();
+        mn.accept(cw);
+        return true;
+    }
+
+    private static void createRunMethodBody(LocalVariablesSorter lvs, Sh2Block block, Sh2DrcContext drcCtx, String blockClassDesc) {
+        int limit = block.prefetchWords.length;
+        BytecodeContext ctx = new BytecodeContext();
+        BytecodeContext dsCtx = new BytecodeContext();
+        ctx.classDesc = dsCtx.classDesc = blockClassDesc;
+        ctx.drcCtx = dsCtx.drcCtx = drcCtx;
+        ctx.mv = dsCtx.mv = lvs;
+        int totCycles = 0;
+        boolean[] tFlagDead = SH2_DRC_DEAD_T_FLAG ? Ow2DrcOptimizer.tFlagDeadMask(block) : new boolean[block.inst.length];
+        for (int i = 0; i < block.prefetchLenWords; i++) {
+            setDrcContext(ctx, block.inst[i], false, tFlagDead[i]);
+            if (ctx.sh2Inst.isBranchDelaySlot) {
+                setDrcContext(dsCtx, block.inst[i + 1], true, tFlagDead[i + 1]);
+                ctx.delaySlotCtx = dsCtx;
+                //LOG.info("Block at PC {}, setting delaySlot ctx\nctx {}\nds  {}", th(block.prefetchPc), ctx, dsCtx);
+            }
+            Ow2Sh2Helper.createInst(ctx);
+            //branch inst cycles taken are not known at this point
+            if (!ctx.sh2Inst.isBranch) {
+                totCycles += ctx.sh2Inst.cycles;
+            }
+            //delay slot will be run within
+            if (ctx.sh2Inst.isBranchDelaySlot) {
+                break;
+            }
+            //superblock, bt/bf within the block
+            if (ctx.sh2Inst.isBranch && i < block.prefetchLenWords - 1) {
+                assert block.isSuperblock();
+                Ow2Sh2Bytecode.sideExit(ctx, totCycles);
+            }
+        }
+        if (block.isNoJump()) {
+            Ow2Sh2Bytecode.setPcExt(ctx, block.inst[limit - 1].pc + 2);
+        }
+        Ow2Sh2Bytecode.subCyclesExt(ctx, totCycles);
+        Ow2Sh2Bytecode.deviceStepFor(ctx, limit);
+        if (Sh2Block.SH2_DRC_CHAIN) {
+            Ow2Sh2Bytecode.chainNextBlock(ctx);
+        }
+        lvs.visitInsn(RETURN);
+    }
+
     private static void setClassField(MethodVisitor mv, String classDesc, int varIndex, Ow2Sh2Helper.DRC_CLASS_FIELD field, String typeDesc) {
         mv.visitVarInsn(ALOAD, 0); // push `this`
         mv.visitVarInsn(ALOAD, varIndex); // push field
         mv.visitFieldInsn(PUTFIELD, classDesc, field.name(), typeDesc);
     }
 
-    private static void setDrcContext(BytecodeContext ctx, Sh2BlockUnit sbu, boolean delaySlot) {
+    private static void setDrcContext(BytecodeContext ctx, Sh2BlockUnit sbu, boolean delaySlot, boolean tFlagDead) {
         ctx.opcode = sbu.opcode;
         ctx.pc = sbu.pc;
         ctx.sh2Inst = sbu.inst;
         ctx.delaySlot = delaySlot;
+        ctx.tFlagDead = tFlagDead;
         ctx.delaySlotCtx = null;
     }
 
@@ -283,7 +283,9 @@ public class Ow2Sh2Bytecode {
     }
 
     public static void CLRT(BytecodeContext ctx) {
-        clearSrFlag(ctx, Sh2.flagT);
+        if (!ctx.tFlagDead) {
+            clearSrFlag(ctx, Sh2.flagT);
+        }
     }
 
     public static final void CMPEQ(BytecodeContext ctx) {
@@ -324,6 +326,9 @@ public class Ow2Sh2Bytecode {
     }
 
     public static final void CMPSTR(BytecodeContext ctx) {
+        if (ctx.tFlagDead) {
+            return;
+        }
         int n = RN(ctx.opcode);
         int m = RM(ctx.opcode);
 
@@ -427,8 +432,13 @@ public class Ow2Sh2Bytecode {
      * } else {
      * ctx.SR &= ~flagT;
      * }
+     * When T is never consumed the operands are dropped.
      */
     public static void cmpInternal(BytecodeContext ctx, int cmpOpcode) {
+        if (ctx.tFlagDead) {
+            ctx.mv.visitInsn(cmpOpcode >= IF_ICMPEQ && cmpOpcode <= IF_ACMPNE ? POP2 : POP);
+            return;
+        }
         Label elseLabel = new Label();
         Label endLabel = new Label();
         ctx.mv.visitJumpInsn(cmpOpcode, elseLabel);
@@ -1508,7 +1518,9 @@ public class Ow2Sh2Bytecode {
     }
 
     public final static void SETT(BytecodeContext ctx) {
-        setSrFlag(ctx, Sh2.flagT);
+        if (!ctx.tFlagDead) {
+            setSrFlag(ctx, Sh2.flagT);
+        }
     }
 
     public final static void SLEEP(BytecodeContext ctx) {
@@ -2004,17 +2016,19 @@ public class Ow2Sh2Bytecode {
     public static void rotateReg(BytecodeContext ctx, boolean left) {
         int n = RN(ctx.opcode);
 
-        clearSrFlag(ctx, Sh2.flagT, false);
-        pushRegStack(ctx, n);
-        ctx.mv.visitInsn(IALOAD);
-        if (left) {
-            emitPushConstToStack(ctx, 31);
-            ctx.mv.visitInsn(IUSHR);
+        if (!ctx.tFlagDead) {
+            clearSrFlag(ctx, Sh2.flagT, false);
+            pushRegStack(ctx, n);
+            ctx.mv.visitInsn(IALOAD);
+            if (left) {
+                emitPushConstToStack(ctx, 31);
+                ctx.mv.visitInsn(IUSHR);
+            }
+            emitPushConstToStack(ctx, Sh2.flagT);
+            ctx.mv.visitInsn(IAND);
+            ctx.mv.visitInsn(IOR);
+            popSR(ctx);
         }
-        emitPushConstToStack(ctx, Sh2.flagT);
-        ctx.mv.visitInsn(IAND);
-        ctx.mv.visitInsn(IOR);
-        popSR(ctx);
 
         pushRegStack(ctx, n);
         pushRegStack(ctx, n);
@@ -2093,17 +2107,19 @@ public class Ow2Sh2Bytecode {
     public static void shiftArithmetic(BytecodeContext ctx, boolean left) {
         int n = RN(ctx.opcode);
 
-        clearSrFlag(ctx, Sh2.flagT, false);
-        pushRegStack(ctx, n);
-        ctx.mv.visitInsn(IALOAD);
-        if (left) {
-            emitPushConstToStack(ctx, 31);
-            ctx.mv.visitInsn(IUSHR);
+        if (!ctx.tFlagDead) {
+            clearSrFlag(ctx, Sh2.flagT, false);
+            pushRegStack(ctx, n);
+            ctx.mv.visitInsn(IALOAD);
+            if (left) {
+                emitPushConstToStack(ctx, 31);
+                ctx.mv.visitInsn(IUSHR);
+            }
+            emitPushConstToStack(ctx, Sh2.flagT);
+            ctx.mv.visitInsn(IAND);
+            ctx.mv.visitInsn(IOR);
+            popSR(ctx);
         }
-        emitPushConstToStack(ctx, Sh2.flagT);
-        ctx.mv.visitInsn(IAND);
-        ctx.mv.visitInsn(IOR);
-        popSR(ctx);
 
         pushRegStack(ctx, n);
         pushRegStack(ctx, n);
@@ -2125,20 +2141,22 @@ public class Ow2Sh2Bytecode {
     public static void shiftLogical(BytecodeContext ctx, boolean left) {
         int n = RN(ctx.opcode);
 
-        pushSh2Context(ctx);
-        pushSh2ContextIntField(ctx, SR.name());
-        emitPushConstToStack(ctx, ~Sh2.flagT);
-        ctx.mv.visitInsn(IAND);
-        pushRegStack(ctx, n);
-        ctx.mv.visitInsn(IALOAD);
-        if (left) {
-            emitPushConstToStack(ctx, 31);
-            ctx.mv.visitInsn(IUSHR);
+        if (!ctx.tFlagDead) {
+            pushSh2Context(ctx);
+            pushSh2ContextIntField(ctx, SR.name());
+            emitPushConstToStack(ctx, ~Sh2.flagT);
+            ctx.mv.visitInsn(IAND);
+            pushRegStack(ctx, n);
+            ctx.mv.visitInsn(IALOAD);
+            if (left) {
+                emitPushConstToStack(ctx, 31);
+                ctx.mv.visitInsn(IUSHR);
+            }
+            emitPushConstToStack(ctx, 1);
+            ctx.mv.visitInsn(IAND);
+            ctx.mv.visitInsn(IOR);
+            popSR(ctx);
         }
-        emitPushConstToStack(ctx, 1);
-        ctx.mv.visitInsn(IAND);
-        ctx.mv.visitInsn(IOR);
-        popSR(ctx);
 
         pushRegStack(ctx, n);
         ctx.mv.visitInsn(DUP2);
@@ -2443,6 +2461,57 @@ public class Ow2Sh2Bytecode {
         ctx.mv.visitFieldInsn(PUTFIELD, Type.getInternalName(Sh2Context.class), PC.name(), Ow2Sh2BlockRecompiler.intDesc);
     }
 
+    /**
+     * {
+     * if (Sh2Block.canChain(sh2Block)) {
+     * sh2Block.nextBlock.stage2Drc.run();
+     * }
+     * }
+     */
+    public static void chainNextBlock(BytecodeContext ctx) {
+        Label endLbl = new Label();
+        pushSh2Block(ctx);
+        ctx.mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(Sh2Block.class), "canChain",
+                Type.getMethodDescriptor(Type.BOOLEAN_TYPE, Type.getType(Sh2Block.class)), false);
+        ctx.mv.visitJumpInsn(IFEQ, endLbl);
+        pushSh2Block(ctx);
+        ctx.mv.visitFieldInsn(GETFIELD, Type.getInternalName(Sh2Block.class), "nextBlock",
+                Type.getDescriptor(Sh2Block.class));
+        ctx.mv.visitFieldInsn(GETFIELD, Type.getInternalName(Sh2Block.class), "stage2Drc",
+                Type.getDescriptor(Runnable.class));
+        ctx.mv.visitMethodInsn(INVOKEINTERFACE, Type.getInternalName(Runnable.class), "run",
+                Ow2Sh2BlockRecompiler.noArgsNoRetDesc, true);
+        ctx.mv.visitLabel(endLbl);
+    }
+
+    /**
+     * {
+     * if (sh2Context.PC != pc + 2) {
+     * sh2Context.cycles -= cycles;
+     * [chainNextBlock]
+     * return;
+     * }
+     * }
+     */
+    public static void sideExit(BytecodeContext ctx, int cycles) {
+        Label contLbl = new Label();
+        pushSh2ContextIntField(ctx, PC.name());
+        emitPushConstToStack(ctx, ctx.pc + 2);
+        ctx.mv.visitJumpInsn(IF_ICMPEQ, contLbl);
+        subCyclesExt(ctx, cycles);
+        if (Sh2Block.SH2_DRC_CHAIN) {
+            chainNextBlock(ctx);
+        }
+        ctx.mv.visitInsn(RETURN);
+        ctx.mv.visitLabel(contLbl);
+    }
+
+    private static void pushSh2Block(BytecodeContext ctx) {
+        ctx.mv.visitVarInsn(ALOAD, 0);
+        ctx.mv.visitFieldInsn(GETFIELD, ctx.classDesc, DRC_CLASS_FIELD.sh2Block.name(),
+                Type.getDescriptor(Sh2Block.class));
+    }
+
     /**
      * {
      * for (int i = 0; i < limit; i++) {
@@ -0,0 +1,452 @@
+package s32x.sh2.drc;
+
+import omegadrive.util.LogHelper;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import org.slf4j.Logger;
+import s32x.bus.Sh2Bus;
+import s32x.bus.Sh2BusImpl;
+import s32x.sh2.Sh2Context;
+
+import java.util.*;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Federico Berti
+ * <p>
+ * Copyright 2023
+ * <p>
+ * Keeps the sh2 registers and SR in JVM locals for the duration of a block.
+ * <p>
+ * Sits between the LocalVariablesSorter and a MethodNode, every register access generated via
+ * Ow2Sh2Bytecode::pushRegStack, ie. {this.regs[n]}, is turned into an ILOAD/ISTORE on a local,
+ * Sh2Context::SR reads and writes likewise: the T flag is only materialized in Sh2Context::SR when needed.
+ * Registers are loaded on entry, written back before returning and before calling anything
+ * that might look at Sh2Context::registers or SR (ie. fallbacks, block chaining), memory accesses excluded.
+ * A call followed by a return is not reloaded.
+ * <p>
+ * If the block uses the regs array in any other way, {@link #isFailed()} returns true and the
+ * caller should generate the block without register allocation.
+ */
+public class Ow2Sh2RegAlloc extends MethodVisitor {
+
+    private static final Logger LOG = LogHelper.getLogger(Ow2Sh2RegAlloc.class.getSimpleName());
+
+    public static final boolean SH2_DRC_REG_ALLOC =
+            Boolean.parseBoolean(System.getProperty("helios.32x.sh2.drc.regAlloc", "true"));
+
+    private static final int NUM_REGS = 16;
+    private static final String SH2_CTX_DESC = Type.getInternalName(Sh2Context.class);
+    private static final String SR_NAME = Ow2Sh2Helper.SH2CTX_CLASS_FIELD.SR.name();
+    private static final int NONE = 0, SEEN_THIS = 1, SEEN_REGS = 2;
+    private static final boolean verbose = false;
+
+    private final MethodNode mn;
+    private final String classDesc;
+    private int[] regLocal;
+    private int regsArrayLocal, srLocal;
+    private final boolean[] used = new boolean[NUM_REGS], written = new boolean[NUM_REGS];
+    private boolean srUsed, srWritten;
+
+    //registers (as array ref + index) virtually on the operand stack
+    private Deque<Integer> phantoms = new ArrayDeque<>();
+    private final Map<Label, Deque<Integer>> labelState = new HashMap<>();
+    private final Set<Label> visitedLabels = new HashSet<>();
+    private final List<AbstractInsnNode> syncPoints = new ArrayList<>(), exitPoints = new ArrayList<>();
+    private final Set<LabelNode> jumpTargets = new HashSet<>();
+    private int pending = NONE;
+    private boolean topIsPhantom, reachable = true, failed;
+
+    public Ow2Sh2RegAlloc(MethodNode mn, String classDesc) {
+        super(ASM9, mn);
+        this.mn = mn;
+        this.classDesc = classDesc;
+    }
+
+    /**
+     * @param regLocal       one int local per sh2 register
+     * @param regsArrayLocal an int[] local
+     * @param srLocal        an int local for Sh2Context::SR
+     */
+    public void setLocals(int[] regLocal, int regsArrayLocal, int srLocal) {
+        assert regLocal.length == NUM_REGS;
+        this.regLocal = regLocal;
+        this.regsArrayLocal = regsArrayLocal;
+        this.srLocal = srLocal;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Adds the register loads on entry and the write-backs at the sync and exit points.
+     */
+    public void finish() {
+        if (failed) {
+            return;
+        }
+        for (Label l : labelState.keySet()) {
+            jumpTargets.add((LabelNode) l.info);
+        }
+        InsnList prologue = new InsnList();
+        prologue.add(new VarInsnNode(ALOAD, 0));
+        prologue.add(new FieldInsnNode(GETFIELD, classDesc, Ow2Sh2Helper.DRC_CLASS_FIELD.regs.name(),
+                Ow2Sh2BlockRecompiler.intArrayDesc));
+        prologue.add(new VarInsnNode(ASTORE, regsArrayLocal));
+        prologue.add(reloadRegs());
+        mn.instructions.insert(prologue);
+        Set<AbstractInsnNode> noSpill = new HashSet<>();
+        for (AbstractInsnNode n : syncPoints) {
+            mn.instructions.insertBefore(n, spillRegs());
+            AbstractInsnNode exit = nextExitPoint(n);
+            if (exit != null) {
+                //the regs array is already up to date, no reload/spill pair before returning
+                noSpill.add(exit);
+                continue;
+            }
+            mn.instructions.insert(n, reloadRegs());
+        }
+        for (AbstractInsnNode n : exitPoints) {
+            if (!noSpill.contains(n)) {
+                mn.instructions.insertBefore(n, spillRegs());
+            }
+        }
+    }
+
+    /**
+     * The exit point immediately following a sync point, if no jump lands in between.
+     */
+    private AbstractInsnNode nextExitPoint(AbstractInsnNode n) {
+        for (AbstractInsnNode i = n.getNext(); i != null; i = i.getNext()) {
+            if (i instanceof LabelNode && jumpTargets.contains(i)) {
+                return null;
+            }
+            if (i.getOpcode() >= 0) {
+                return exitPoints.contains(i) ? i : null;
+            }
+        }
+        return null;
+    }
+
+    private InsnList reloadRegs() {
+        InsnList l = new InsnList();
+        if (srUsed) {
+            pushSh2Context(l);
+            l.add(new FieldInsnNode(GETFIELD, SH2_CTX_DESC, SR_NAME, Ow2Sh2BlockRecompiler.intDesc));
+            l.add(new VarInsnNode(ISTORE, srLocal));
+        }
+        for (int i = 0; i < NUM_REGS; i++) {
+            if (used[i]) {
+                l.add(new VarInsnNode(ALOAD, regsArrayLocal));
+                l.add(pushConst(i));
+                l.add(new InsnNode(IALOAD));
+                l.add(new VarInsnNode(ISTORE, regLocal[i]));
+            }
+        }
+        return l;
+    }
+
+    private InsnList spillRegs() {
+        InsnList l = new InsnList();
+        if (srWritten) {
+            pushSh2Context(l);
+            l.add(new VarInsnNode(ILOAD, srLocal));
+            l.add(new FieldInsnNode(PUTFIELD, SH2_CTX_DESC, SR_NAME, Ow2Sh2BlockRecompiler.intDesc));
+        }
+        for (int i = 0; i < NUM_REGS; i++) {
+            if (written[i]) {
+                l.add(new VarInsnNode(ALOAD, regsArrayLocal));
+                l.add(pushConst(i));
+                l.add(new VarInsnNode(ILOAD, regLocal[i]));
+                l.add(new InsnNode(IASTORE));
+            }
+        }
+        return l;
+    }
+
+    private void pushSh2Context(InsnList l) {
+        l.add(new VarInsnNode(ALOAD, 0));
+        l.add(new FieldInsnNode(GETFIELD, classDesc, Ow2Sh2Helper.DRC_CLASS_FIELD.sh2Context.name(),
+                Type.getDescriptor(Sh2Context.class)));
+    }
+
+    private static AbstractInsnNode pushConst(int val) {
+        return val <= 5 ? new InsnNode(ICONST_0 + val) : new IntInsnNode(BIPUSH, val);
+    }
+
+    private void fail(String reason) {
+        if (!failed && verbose) LOG.info("{} regAlloc disabled: {}", classDesc, reason);
+        failed = true;
+    }
+
+    /**
+     * Any instruction that is not part of a {this.regs[n]} sequence.
+     */
+    private void flushPending() {
+        if (pending == SEEN_REGS) {
+            fail("regs array used as an object");
+        }
+        if (pending == SEEN_THIS) {
+            super.visitVarInsn(ALOAD, 0);
+        }
+        pending = NONE;
+        topIsPhantom = false;
+    }
+
+    private boolean pushRegIndex(int val) {
+        if (pending != SEEN_REGS) {
+            return false;
+        }
+        pending = NONE;
+        if (val < 0 || val >= NUM_REGS) {
+            fail("reg index: " + val);
+            return true;
+        }
+        phantoms.push(val);
+        used[val] = true;
+        topIsPhantom = true;
+        return true;
+    }
+
+    @Override
+    public void visitInsn(int opcode) {
+        if (opcode >= ICONST_M1 && opcode <= ICONST_5 && pushRegIndex(opcode - ICONST_0)) {
+            return;
+        }
+        if (pending != NONE) {
+            flushPending();
+        }
+        switch (opcode) {
+            case IALOAD -> {
+                if (topIsPhantom) {
+                    super.visitVarInsn(ILOAD, regLocal[phantoms.pop()]);
+                    topIsPhantom = false;
+                    return;
+                }
+                if (!phantoms.isEmpty()) {
+                    fail("IALOAD");
+                }
+            }
+            case IASTORE -> {
+                if (phantoms.isEmpty()) {
+                    fail("IASTORE");
+                    break;
+                }
+                int reg = phantoms.pop();
+                written[reg] = true;
+                super.visitVarInsn(ISTORE, regLocal[reg]);
+                topIsPhantom = false;
+                return;
+            }
+            case DUP2 -> {
+                if (topIsPhantom) {
+                    phantoms.push(phantoms.peek());
+                    return;
+                }
+                if (!phantoms.isEmpty()) {
+                    fail("DUP2");
+                }
+            }
+            //the phantom array ref + index would need to be moved around on the real stack
+            case POP, POP2, DUP, DUP_X1, DUP_X2, DUP2_X1, DUP2_X2, SWAP -> {
+                if (topIsPhantom || !phantoms.isEmpty()) {
+                    fail("stack op: " + opcode);
+                }
+            }
+            case IRETURN, LRETURN, FRETURN, DRETURN, ARETURN, RETURN -> {
+                if (!phantoms.isEmpty()) {
+                    fail("return");
+                }
+                super.visitInsn(opcode);
+                exitPoints.add(mn.instructions.getLast());
+                topIsPhantom = false;
+                reachable = false;
+                return;
+            }
+            case ATHROW -> reachable = false;
+        }
+        topIsPhantom = false;
+        super.visitInsn(opcode);
+    }
+
+    @Override
+    public void visitIntInsn(int opcode, int operand) {
+        if (opcode != NEWARRAY && pushRegIndex(operand)) {
+            return;
+        }
+        flushPending();
+        super.visitIntInsn(opcode, operand);
+    }
+
+    @Override
+    public void visitLdcInsn(Object value) {
+        if (value instanceof Integer i && pushRegIndex(i)) {
+            return;
+        }
+        flushPending();
+        super.visitLdcInsn(value);
+    }
+
+    @Override
+    public void visitVarInsn(int opcode, int varIndex) {
+        flushPending();
+        if (opcode == ALOAD && varIndex == 0) {
+            pending = SEEN_THIS;
+            return;
+        }
+        super.visitVarInsn(opcode, varIndex);
+    }
+
+    @Override
+    public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+        if (pending == SEEN_THIS && opcode == GETFIELD && owner.equals(classDesc) &&
+                name.equals(Ow2Sh2Helper.DRC_CLASS_FIELD.regs.name())) {
+            pending = SEEN_REGS;
+            return;
+        }
+        flushPending();
+        if (owner.equals(SH2_CTX_DESC) && name.equals(SR_NAME)) {
+            srUsed = true;
+            if (opcode == GETFIELD) {
+                dropSh2ContextRef();
+                super.visitVarInsn(ILOAD, srLocal);
+                return;
+            }
+            if (opcode == PUTFIELD) {
+                srWritten = true;
+                super.visitVarInsn(ISTORE, srLocal);
+                super.visitInsn(POP);
+                return;
+            }
+        }
+        super.visitFieldInsn(opcode, owner, name, descriptor);
+    }
+
+    /**
+     * The Sh2Context ref on top of the stack is not needed to read SR, undo the DUP or the
+     * {this.sh2Context} load that has just pushed it, pop it otherwise.
+     */
+    private void dropSh2ContextRef() {
+        AbstractInsnNode last = mn.instructions.getLast();
+        if (last != null && last.getOpcode() == DUP) {
+            mn.instructions.remove(last);
+            return;
+        }
+        AbstractInsnNode prev = last != null ? last.getPrevious() : null;
+        if (last instanceof FieldInsnNode f && f.getOpcode() == GETFIELD && f.owner.equals(classDesc) &&
+                f.name.equals(Ow2Sh2Helper.DRC_CLASS_FIELD.sh2Context.name()) &&
+                prev instanceof VarInsnNode v && v.getOpcode() == ALOAD && v.var == 0) {
+            mn.instructions.remove(prev);
+            mn.instructions.remove(last);
+            return;
+        }
+        super.visitInsn(POP);
+    }
+
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+        flushPending();
+        super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+        if (!isMemoryAccess(owner, name)) {
+            syncPoints.add(mn.instructions.getLast());
+        }
+    }
+
+    //memory accesses never look at the sh2 registers
+    private static boolean isMemoryAccess(String owner, String name) {
+        return (owner.equals(Type.getInternalName(Sh2BusImpl.class)) || owner.equals(Type.getInternalName(Sh2Bus.class)))
+                && (name.equals(Ow2Sh2Helper.SH2MEMORY_METHOD.read.name()) ||
+                name.equals(Ow2Sh2Helper.SH2MEMORY_METHOD.write.name()));
+    }
+
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+        flushPending();
+        if (visitedLabels.contains(label)) {
+            fail("backward jump");
+        }
+        mergeState(label);
+        super.visitJumpInsn(opcode, label);
+        if (opcode == GOTO) {
+            reachable = false;
+        }
+    }
+
+    @Override
+    public void visitLabel(Label label) {
+        flushPending();
+        visitedLabels.add(label);
+        Deque<Integer> s = labelState.get(label);
+        if (s != null) {
+            if (reachable && !sameState(s, phantoms)) {
+                fail("label state");
+            }
+            phantoms = new ArrayDeque<>(s);
+        }
+        reachable = true;
+        super.visitLabel(label);
+    }
+
+    private void mergeState(Label label) {
+        Deque<Integer> s = labelState.get(label);
+        if (s == null) {
+            labelState.put(label, new ArrayDeque<>(phantoms));
+        } else if (!sameState(s, phantoms)) {
+            fail("jump state");
+        }
+    }
+
+    private static boolean sameState(Deque<Integer> a, Deque<Integer> b) {
+        return Arrays.equals(a.toArray(), b.toArray());
+    }
+
+    @Override
+    public void visitTypeInsn(int opcode, String type) {
+        flushPending();
+        super.visitTypeInsn(opcode, type);
+    }
+
+    @Override
+    public void visitIincInsn(int varIndex, int increment) {
+        flushPending();
+        super.visitIincInsn(varIndex, increment);
+    }
+
+    @Override
+    public void visitInvokeDynamicInsn(String name, String descriptor, org.objectweb.asm.Handle bootstrapMethodHandle,
+                                       Object... bootstrapMethodArguments) {
+        flushPending();
+        fail("invokeDynamic");
+        super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+    }
+
+    @Override
+    public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+        flushPending();
+        fail("tableSwitch");
+        super.visitTableSwitchInsn(min, max, dflt, labels);
+    }
+
+    @Override
+    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+        flushPending();
+        fail("lookupSwitch");
+        super.visitLookupSwitchInsn(dflt, keys, labels);
+    }
+
+    @Override
+    public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+        flushPending();
+        super.visitMultiANewArrayInsn(descriptor, numDimensions);
+    }
+
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+        flushPending();
+        super.visitMaxs(maxStack, maxLocals);
+    }
+}
@@ -3,6 +3,7 @@ package s32x.sh2.drc;
 import omegadrive.util.LogHelper;
 import org.slf4j.Logger;
 import s32x.Sh2MMREG;
+import s32x.event.PollSysEventManager;
 import s32x.sh2.Sh2;
 import s32x.sh2.Sh2Context;
 import s32x.sh2.Sh2Helper;
@@ -34,6 +35,22 @@ public class Sh2Block {
     public static final int SH2_DRC_MAX_BLOCK_LEN_BYTES =
             Integer.parseInt(System.getProperty("helios.32x.sh2.drc.maxBlockLen", "32"));
     public static final int MAX_INST_LEN = SH2_DRC_MAX_BLOCK_LEN_BYTES >> 1;
+    //drc blocks jump directly to the next known block, see canChain
+    public static final boolean SH2_DRC_CHAIN =
+            Boolean.parseBoolean(System.getProperty("helios.32x.sh2.drc.chain", "true"));
+    //hot blocks continue past not-taken forward bt/bf, see Sh2Prefetch::extendBlock
+    public static final int SH2_DRC_MAX_SUPERBLOCK_LEN_BYTES =
+            Integer.parseInt(System.getProperty("helios.32x.sh2.drc.maxSuperblockLen", "64"));
+    public static final boolean SH2_DRC_SUPERBLOCK = SH2_DRC_MAX_SUPERBLOCK_LEN_BYTES > SH2_DRC_MAX_BLOCK_LEN_BYTES;
+    //longest block that can be found at a given pc, invalidation needs to look back this far
+    public static final int SH2_DRC_MAX_BLOCK_SPAN_BYTES =
+            Math.max(SH2_DRC_MAX_BLOCK_LEN_BYTES, SH2_DRC_MAX_SUPERBLOCK_LEN_BYTES);
+    //stage2 blocks are compiled on a background thread, the interpreter runs the block in the meantime
+    public static final boolean SH2_DRC_ASYNC =
+            Boolean.parseBoolean(System.getProperty("helios.32x.sh2.drc.async", "false"));
+    //dt/bf delay loops skip ahead to the loop exit, see Ow2DrcOptimizer::skipDelayLoop
+    public static final boolean SH2_DRC_DELAY_LOOP =
+            Boolean.parseBoolean(System.getProperty("helios.32x.sh2.drc.delayLoop", "true"));
 
     //0 - Master, 1 - Slave
     public static final int CPU_FLAG = 1 << 0;
@@ -41,6 +58,8 @@ public class Sh2Block {
     public static final int NO_JUMP_FLAG = 1 << 2;
 
     public static final int VALID_FLAG = 1 << 3;
+    public static final int SUPERBLOCK_FLAG = 1 << 4;
+    public static final int STAGE2_PENDING_FLAG = 1 << 5;
 
     public Sh2Prefetcher.Sh2BlockUnit[] inst;
     public Sh2Prefetcher.Sh2BlockUnit curr;
@@ -52,9 +71,22 @@ public class Sh2Block {
     public Ow2DrcOptimizer.PollerCtx poller = UNKNOWN_POLLER;
     public int blockFlags;
     public PollType pollType = PollType.UNKNOWN;
-    public Runnable stage2Drc;
+    public volatile Runnable stage2Drc;
+    //set by the compiler thread when SH2_DRC_ASYNC, see installStage2
+    volatile Stage2Result stage2Result;
+    //bumped when the block is invalidated, a class compiled for an older generation is dropped
+    private int generation;
     public int hashCodeWords;
+    //a superblock is looked up via the block it extends, see Sh2KnownBlocks
+    public int baseLenWords, baseHashCodeWords;
+    //register decremented by the dt of a delay loop, -1 otherwise
+    public int delayLoopReg = -1;
+    //see Sh2KnownBlocks
+    Sh2Block knownPrev, knownNext;
+    Sh2KnownBlocks knownList;
     private static final boolean verbose = false;
+    //per cpu, chained blocks nested below the block started by the dispatcher, assertions only
+    private static final int[] chainDepth = new int[2];
 
     static {
         S32xUtil.assertPowerOf2Minus1("OPT_THRESHOLD2", OPT_THRESHOLD2);
@@ -71,6 +103,7 @@ public class Sh2Block {
         assert prefetchPc != -1;
         assert (blockFlags & VALID_FLAG) > 0;
         if (stage2Drc != null) {
+            assert (chainDepth[blockFlags & CPU_FLAG] = 0) == 0;
             stage2Drc.run();
             return;
         }
@@ -78,8 +111,9 @@ public class Sh2Block {
     }
 
     protected final void runInterpreter(Sh2 sh2, Sh2MMREG sm, Sh2Context ctx) {
-        Sh2Prefetcher.Sh2BlockUnit prev = curr;
+        //addHit might turn this block into a superblock
         addHit();
+        Sh2Prefetcher.Sh2BlockUnit prev = curr;
         int startCycle = ctx.cycles;
         do {
             sh2.printDebugMaybe(curr.opcode);
@@ -87,21 +121,85 @@ public class Sh2Block {
             if (curr.inst.isBranchDelaySlot || curr.next == null) {
                 break;
             }
+            //superblock side exit, bt/bf taken
+            if (curr.inst.isBranch && ctx.PC != curr.next.pc) {
+                break;
+            }
             curr = curr.next;
         } while (true);
         cyclesConsumed = (startCycle - ctx.cycles) + Md32xRuntimeData.getCpuDelayExt();
         curr = prev;
     }
 
+    /**
+     * Called by a drc block when it completes, if true the block will run nextBlock directly,
+     * without going back to Sh2Impl::decode.
+     * Anything that needs the dispatcher (self loops/polling, interrupts, burst done, invalid or
+     * not yet compiled blocks) returns false.
+     * The chained block runs nested on the java stack (stage2Drc.run() inside run()): every block consumes
+     * at least one cycle before chaining and chaining stops when ctx.cycles goes negative,
+     * the depth is bounded by Sh2Context.burstCycles.
+     */
+    public static boolean canChain(final Sh2Block block) {
+        final Sh2Block nb = block.nextBlock;
+        final Sh2Context ctx = block.drcContext.sh2Ctx;
+        //an invalid block has an odd prefetchPc
+        if (nb == block || nb.prefetchPc != ctx.PC || nb.stage2Drc == null) {
+            return false;
+        }
+        ctx.cycles -= Md32xRuntimeData.resetCpuDelayExt();
+        if (ctx.cycles < 0 || ctx.devices.intC.getInterruptLevel() > ((ctx.SR & Sh2.flagIMASK) >>> 4) ||
+                PollSysEventManager.instance.getPoller(ctx.cpuAccess).isPollingActive()) {
+            return false;
+        }
+        final Sh2.FetchResult fr = ctx.fetchResult;
+        //not running via Sh2Impl::decode
+        if (fr.block != block) {
+            return false;
+        }
+        fr.pc = ctx.PC;
+        fr.block = nb;
+        fr.opcode = nb.prefetchWords[0];
+        block.poller.spinCount = 0;
+        assert ++chainDepth[block.blockFlags & CPU_FLAG] <= Sh2Context.burstCycles :
+                "chain depth: " + chainDepth[block.blockFlags & CPU_FLAG] + ", burst: " + Sh2Context.burstCycles;
+        return true;
+    }
+
+    /**
+     * Compiled by the drc thread for the given block generation, drc is null when the compilation failed.
+     */
+    static final class Stage2Result {
+        final int generation;
+        final Runnable drc;
+
+        Stage2Result(int generation, Runnable drc) {
+            this.generation = generation;
+            this.drc = drc;
+        }
+    }
+
     public void addHit() {
         hits++;
-        if (stage2Drc == null && ((hits + 1) & OPT_THRESHOLD2) == 0) {
+        if (stage2Result != null) {
+            installStage2();
+        }
+        if (stage2Drc == null && ((hits + 1) & OPT_THRESHOLD2) == 0 && !isStage2Pending()) {
             assert inst != null;
             if (verbose) LOG.info("{} HRC2 count: {}\n{}", "", th(hits), Sh2Helper.toListOfInst(this));
+            if (SH2_DRC_SUPERBLOCK && Sh2.Sh2Config.get().drcEn) {
+                drcContext.memory.extendBlock(this);
+            }
             stage2();
-            if (Sh2.Sh2Config.get().pollDetectEn) {
+            //pollers are detected on simple blocks only
+            if (isSuperblock()) {
+                pollType = NONE;
+            } else if (Sh2.Sh2Config.get().pollDetectEn) {
                 Ow2DrcOptimizer.pollDetector(this);
             }
+            if (SH2_DRC_DELAY_LOOP && !isSuperblock()) {
+                delayLoopReg = Ow2DrcOptimizer.detectDelayLoop(this);
+            }
         }
     }
     public void stage1(Sh2Prefetcher.Sh2BlockUnit[] ic) {
@@ -113,7 +211,7 @@ public class Sh2Block {
         for (int i = 1; i < inst.length - 1; i++) {
             inst[i].next = inst[i + 1];
             inst[i].pc = prefetchPc + (i << 1);
-            assert !inst[i].inst.isBranch || inst[i].inst.isBranchDelaySlot;
+            assert !inst[i].inst.isBranch || inst[i].inst.isBranchDelaySlot || isSuperblock();
         }
         Sh2Prefetcher.Sh2BlockUnit sbu = inst[lastIdx];
         sbu.pc = prefetchPc + (lastIdx << 1);
@@ -129,10 +227,59 @@ public class Sh2Block {
     public void stage2() {
         if (Sh2.Sh2Config.get().drcEn) {
             assert drcContext != null;
+            if (SH2_DRC_ASYNC) {
+                setFlag(STAGE2_PENDING_FLAG, true);
+                Ow2Sh2BlockRecompiler.getInstance().createDrcClassAsync(this, drcContext);
+                return;
+            }
             stage2Drc = Ow2Sh2BlockRecompiler.getInstance().createDrcClass(this, drcContext);
         }
     }
 
+    /**
+     * Emulation thread only, the compiled class is dropped if the block has been invalidated (or evicted)
+     * in the meantime. A failed compilation can be queued again at the next threshold.
+     */
+    private void installStage2() {
+        final Stage2Result res = stage2Result;
+        stage2Result = null;
+        setFlag(STAGE2_PENDING_FLAG, false);
+        if (res.drc != null && res.generation == generation && isValid()) {
+            stage2Drc = res.drc;
+        }
+    }
+
+    /**
+     * Copy of what the drc needs to generate the class, the compiler thread never looks at the live block.
+     */
+    Sh2Block stage2Snapshot() {
+        Sh2Block b = new Sh2Block(prefetchPc, getCpu());
+        b.blockFlags = blockFlags;
+        b.prefetchWords = prefetchWords.clone();
+        b.prefetchLenWords = prefetchLenWords;
+        b.hashCodeWords = hashCodeWords;
+        b.start = start;
+        b.end = end;
+        b.pcMasked = pcMasked;
+        b.drcContext = drcContext;
+        //never modified once set, see stage1
+        b.inst = inst;
+        return b;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Drops the generated code, and any class still being compiled for this block.
+     */
+    void discardStage2() {
+        generation++;
+        stage2Drc = null;
+        stage2Result = null;
+    }
+
     public boolean isPollingBlock() {
         return pollType.ordinal() > NONE.ordinal();
     }
@@ -158,6 +305,29 @@ public class Sh2Block {
         return (blockFlags & NO_JUMP_FLAG) > 0;
     }
 
+    public void setSuperblock(boolean val) {
+        setFlag(SUPERBLOCK_FLAG, val);
+    }
+
+    public boolean isSuperblock() {
+        return (blockFlags & SUPERBLOCK_FLAG) > 0;
+    }
+
+    /**
+     * Length of a prefetch at prefetchPc matching this block, shorter than the block for a superblock.
+     */
+    public int getFetchLenWords() {
+        return isSuperblock() ? baseLenWords : prefetchLenWords;
+    }
+
+    public int getFetchHashCodeWords() {
+        return isSuperblock() ? baseHashCodeWords : hashCodeWords;
+    }
+
+    public boolean isStage2Pending() {
+        return (blockFlags & STAGE2_PENDING_FLAG) > 0;
+    }
+
     public boolean isCacheFetch() {
         return (blockFlags & CACHE_FETCH_FLAG) > 0;
     }
@@ -165,6 +335,7 @@ public class Sh2Block {
     public void invalidate() {
         blockFlags &= ~VALID_FLAG;
         prefetchPc |= 1;
+        generation++;
     }
 
     public void setValid() {
@@ -0,0 +1,188 @@
+package s32x.sh2.drc;
+
+import java.util.Arrays;
+
+/**
+ * Federico Berti
+ * <p>
+ * Copyright 2023
+ * <p>
+ * Invalidated blocks starting at a given pc, kept for recycling, most recently used first.
+ * A block matches when hashCodeWords and the words are the same, blocks sharing a hash are all kept.
+ * A superblock matches on the words of the block it extends, the caller checks the rest.
+ * <p>
+ * All the known blocks are also on a global LRU list linked via the blocks themselves,
+ * lookups and insertions do not allocate.
+ */
+public final class Sh2KnownBlocks {
+
+    //invalidated blocks kept for recycling, per pc and in total
+    public static final int MAX_KNOWN_BLOCKS_PER_PC =
+            Integer.parseInt(System.getProperty("helios.32x.sh2.drc.knownBlocks.perPc", "16"));
+    public static final int MAX_KNOWN_BLOCKS =
+            Integer.parseInt(System.getProperty("helios.32x.sh2.drc.knownBlocks.max", "8192"));
+
+    public static final Sh2KnownBlocks EMPTY = new Sh2KnownBlocks(0);
+
+    //global LRU, head is the least recently used
+    private static Sh2Block lruHead, lruTail;
+    private static int lruSize;
+
+    private Sh2Block[] blocks;
+    private int size;
+
+    public Sh2KnownBlocks() {
+        this(2);
+    }
+
+    private Sh2KnownBlocks(int capacity) {
+        blocks = new Sh2Block[capacity];
+    }
+
+    /**
+     * Returns the matching block, or INVALID_BLOCK, the block becomes the most recently used.
+     */
+    public Sh2Block get(int hashCodeWords, int[] words, int lenWords) {
+        for (int i = 0; i < size; i++) {
+            final Sh2Block b = blocks[i];
+            if (b.getFetchHashCodeWords() == hashCodeWords && b.getFetchLenWords() == lenWords &&
+                    Arrays.equals(b.prefetchWords, 0, lenWords, words, 0, lenWords)) {
+                moveToFront(i);
+                lruMoveToTail(b);
+                return b;
+            }
+        }
+        return Sh2Block.INVALID_BLOCK;
+    }
+
+    /**
+     * Returns the block if it was already known, null otherwise.
+     */
+    public Sh2Block add(Sh2Block b) {
+        assert this != EMPTY;
+        assert b.knownList == null || b.knownList == this;
+        int idx = indexOf(b);
+        if (idx >= 0) {
+            moveToFront(idx);
+            lruMoveToTail(b);
+            return b;
+        }
+        if (size == MAX_KNOWN_BLOCKS_PER_PC) {
+            evict(blocks[size - 1]);
+        }
+        if (size == blocks.length) {
+            blocks = Arrays.copyOf(blocks, Math.min(MAX_KNOWN_BLOCKS_PER_PC, size << 1));
+        }
+        System.arraycopy(blocks, 0, blocks, 1, size);
+        blocks[0] = b;
+        size++;
+        b.knownList = this;
+        lruLinkTail(b);
+        if (lruSize > MAX_KNOWN_BLOCKS) {
+            evict(lruHead);
+        }
+        return null;
+    }
+
+    /**
+     * Removes the block, an invalid block also drops the generated code.
+     */
+    public boolean remove(Sh2Block b) {
+        int idx = indexOf(b);
+        if (idx < 0) {
+            return false;
+        }
+        removeAt(idx);
+        lruUnlink(b);
+        //nothing can run an invalid block, let the generated class go
+        if (!b.isValid()) {
+            b.discardStage2();
+        }
+        return true;
+    }
+
+    public boolean contains(Sh2Block b) {
+        return indexOf(b) >= 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public static int totalSize() {
+        return lruSize;
+    }
+
+    public static void clear() {
+        while (lruHead != null) {
+            evict(lruHead);
+        }
+    }
+
+    private static void evict(Sh2Block b) {
+        b.knownList.remove(b);
+    }
+
+    private int indexOf(Sh2Block b) {
+        for (int i = 0; i < size; i++) {
+            if (blocks[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void moveToFront(int idx) {
+        if (idx > 0) {
+            Sh2Block b = blocks[idx];
+            System.arraycopy(blocks, 0, blocks, 1, idx);
+            blocks[0] = b;
+        }
+    }
+
+    private void removeAt(int idx) {
+        System.arraycopy(blocks, idx + 1, blocks, idx, size - idx - 1);
+        blocks[--size] = null;
+    }
+
+    private static void lruLinkTail(Sh2Block b) {
+        b.knownPrev = lruTail;
+        b.knownNext = null;
+        if (lruTail != null) {
+            lruTail.knownNext = b;
+        } else {
+            lruHead = b;
+        }
+        lruTail = b;
+        lruSize++;
+    }
+
+    private static void lruUnlink(Sh2Block b) {
+        if (b.knownPrev != null) {
+            b.knownPrev.knownNext = b.knownNext;
+        } else {
+            lruHead = b.knownNext;
+        }
+        if (b.knownNext != null) {
+            b.knownNext.knownPrev = b.knownPrev;
+        } else {
+            lruTail = b.knownPrev;
+        }
+        b.knownPrev = b.knownNext = null;
+        b.knownList = null;
+        lruSize--;
+    }
+
+    private static void lruMoveToTail(Sh2Block b) {
+        if (b != lruTail) {
+            Sh2KnownBlocks list = b.knownList;
+            lruUnlink(b);
+            lruLinkTail(b);
+            b.knownList = list;
+        }
+    }
+}
@@ -27,17 +27,19 @@ public class PrefetchUtil {
     public static void logPcHits(S32xUtil.CpuDeviceAccess cpu) {
         Map<CpuFastDebug.PcInfoWrapper, Long> hitMap = new HashMap<>();
         long top10 = 10;
-        Sh2Helper.Sh2PcInfoWrapper[][] pcInfoWrapper = Sh2Helper.getPcInfoWrapper();
+        Sh2Helper.Sh2PcInfoWrapper[][][] pcInfoWrapper = Sh2Helper.getPcInfoWrapper();
         for (int i = 0; i < pcInfoWrapper.length; i++) {
-            for (int j = 0; j < pcInfoWrapper[i].length; j++) {
-                Sh2Helper.Sh2PcInfoWrapper piw = pcInfoWrapper[i][j | cpu.ordinal()];
-                if (piw != Sh2Helper.SH2_NOT_VISITED) {
-                    if (piw.block.hits < top10) {
-                        continue;
-                    }
-                    hitMap.put(piw, Long.valueOf(piw.block.hits));
-                    top10 = hitMap.values().stream().sorted().limit(10).findFirst().orElse(10L);
+            for (int k = 0; k < pcInfoWrapper[i].length; k++) {
+                for (int j = 0; j < pcInfoWrapper[i][k].length; j++) {
+                    Sh2Helper.Sh2PcInfoWrapper piw = pcInfoWrapper[i][k][j | cpu.ordinal()];
+                    if (piw != Sh2Helper.SH2_NOT_VISITED) {
+                        if (piw.block.hits < top10) {
+                            continue;
+                        }
+                        hitMap.put(piw, Long.valueOf(piw.block.hits));
+                        top10 = hitMap.values().stream().sorted().limit(10).findFirst().orElse(10L);
 //                        LOG.info("{} PC: {} hits: {}, {}", cpu, th(pc), piw.hits, piw);
+                    }
                 }
             }
         }
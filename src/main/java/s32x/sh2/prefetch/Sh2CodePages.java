@@ -0,0 +1,202 @@
+package s32x.sh2.prefetch;
+
+import s32x.dict.S32xDict;
+import s32x.sh2.Sh2Debug;
+import s32x.sh2.drc.Sh2Block;
+import s32x.util.S32xUtil.CpuDeviceAccess;
+
+import java.util.Arrays;
+
+/**
+ * Federico Berti
+ * <p>
+ * Copyright 2023
+ * <p>
+ * Memory range to blocks index, per cpu: each page of memory lists the valid blocks overlapping it,
+ * a bitmap has one bit per page set when the list is not empty.
+ * Cached and cache-through addresses share the same page.
+ * <p>
+ * Blocks are added when fetched (or extended) and removed when invalidated, see {@link Sh2Prefetch}.
+ */
+public class Sh2CodePages {
+
+    //32 bytes per page
+    public static final int PAGE_SHIFT = 5;
+    //pages per chunk of the block lists
+    private static final int CHUNK_SHIFT = 8;
+    private static final int CACHE_THROUGH_AREA_BIT = 0x20;
+    private static final Sh2Block[][][] EMPTY_CHUNKS = new Sh2Block[0][][];
+
+    private static final int[][][] pages = new int[2][S32xDict.SH2_PC_AREAS][];
+    //[cpu][area][chunk][pageInChunk] -> blocks
+    private static final Sh2Block[][][][][] blocks = new Sh2Block[2][S32xDict.SH2_PC_AREAS][][][];
+
+    static {
+        clear();
+    }
+
+    public static void addBlock(Sh2Block block) {
+        assert block.getCpu().ordinal() < 2 && block.isValid();
+        final int start = block.prefetchPc & ~1;
+        final int area = start >>> S32xDict.SH2_PC_AREA_SHIFT;
+        final int cpu = block.getCpu().ordinal();
+        final int[] p = pages[cpu][area & ~CACHE_THROUGH_AREA_BIT];
+        final Sh2Block[][][] chunks = getChunks(cpu, area);
+        final int mask = Sh2Debug.pcAreaMaskMap[area];
+        final int last = ((start & mask) + ((block.prefetchLenWords - 1) << 1) + 1) >>> PAGE_SHIFT;
+        assert p.length > 0 && last <= (mask >>> PAGE_SHIFT);
+        for (int page = (start & mask) >>> PAGE_SHIFT; page <= last; page++) {
+            Sh2Block[][] chunk = chunks[page >>> CHUNK_SHIFT];
+            if (chunk == null) {
+                chunk = chunks[page >>> CHUNK_SHIFT] = new Sh2Block[1 << CHUNK_SHIFT][];
+            }
+            final int idx = page & ((1 << CHUNK_SHIFT) - 1);
+            final Sh2Block[] list = chunk[idx];
+            if (list == null) {
+                chunk[idx] = new Sh2Block[]{block};
+            } else if (indexOf(list, block) < 0) {
+                Sh2Block[] l = Arrays.copyOf(list, list.length + 1);
+                l[list.length] = block;
+                chunk[idx] = l;
+            }
+            p[page >>> 5] |= 1 << (page & 31);
+        }
+    }
+
+    /**
+     * The block range is computed from prefetchPc and prefetchLenWords, remove before changing them.
+     */
+    public static void removeBlock(Sh2Block block) {
+        final int start = block.prefetchPc & ~1;
+        final int area = start >>> S32xDict.SH2_PC_AREA_SHIFT;
+        final int cpu = block.getCpu().ordinal();
+        final Sh2Block[][][] chunks = blocks[cpu][area & ~CACHE_THROUGH_AREA_BIT];
+        final int[] p = pages[cpu][area & ~CACHE_THROUGH_AREA_BIT];
+        final int mask = Sh2Debug.pcAreaMaskMap[area];
+        final int last = ((start & mask) + ((block.prefetchLenWords - 1) << 1) + 1) >>> PAGE_SHIFT;
+        for (int page = (start & mask) >>> PAGE_SHIFT; page <= last && page < (chunks.length << CHUNK_SHIFT); page++) {
+            final Sh2Block[][] chunk = chunks[page >>> CHUNK_SHIFT];
+            final int idx = page & ((1 << CHUNK_SHIFT) - 1);
+            if (chunk == null || chunk[idx] == null) {
+                continue;
+            }
+            final Sh2Block[] list = chunk[idx];
+            final int pos = indexOf(list, block);
+            if (pos < 0) {
+                continue;
+            }
+            if (list.length == 1) {
+                chunk[idx] = null;
+                p[page >>> 5] &= ~(1 << (page & 31));
+            } else {
+                Sh2Block[] l = new Sh2Block[list.length - 1];
+                System.arraycopy(list, 0, l, 0, pos);
+                System.arraycopy(list, pos + 1, l, pos, l.length - pos);
+                chunk[idx] = l;
+            }
+        }
+    }
+
+    /**
+     * Any code in [start, end], ie. a cpu write or a whole dma transfer.
+     */
+    public static boolean isCode(CpuDeviceAccess cpu, int start, int end) {
+        final int area = start >>> S32xDict.SH2_PC_AREA_SHIFT;
+        final int[] p = pages[cpu.ordinal()][area & ~CACHE_THROUGH_AREA_BIT];
+        if (p.length == 0) {
+            return false;
+        }
+        final int mask = Sh2Debug.pcAreaMaskMap[area];
+        final int ps = (start & mask) >>> PAGE_SHIFT;
+        final int pe = (end & mask) >>> PAGE_SHIFT;
+        if (ps <= pe) {
+            return anyPage(p, ps, pe);
+        }
+        //wraps around the end of the area
+        return anyPage(p, ps, mask >>> PAGE_SHIFT) || anyPage(p, 0, pe);
+    }
+
+    //any bit set in [from, to], one word of the bitmap at a time
+    private static boolean anyPage(int[] p, int from, int to) {
+        final int wf = from >>> 5, wt = to >>> 5;
+        final int head = -1 << (from & 31);
+        final int tail = -1 >>> (31 - (to & 31));
+        if (wf == wt) {
+            return (p[wf] & head & tail) != 0;
+        }
+        if ((p[wf] & head) != 0 || (p[wt] & tail) != 0) {
+            return true;
+        }
+        for (int w = wf + 1; w < wt; w++) {
+            if (p[w] != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Blocks overlapping [start, end], any alias.
+     * Returns the number of blocks found, when larger than out.length only out.length blocks are stored.
+     */
+    public static int getBlocks(CpuDeviceAccess cpu, int start, int end, Sh2Block[] out) {
+        final int area = start >>> S32xDict.SH2_PC_AREA_SHIFT;
+        final Sh2Block[][][] chunks = blocks[cpu.ordinal()][area & ~CACHE_THROUGH_AREA_BIT];
+        final int mask = Sh2Debug.pcAreaMaskMap[area];
+        final int ms = start & mask;
+        final int me = end & mask;
+        final int ps = ms >>> PAGE_SHIFT;
+        final int pe = me >>> PAGE_SHIFT;
+        int n = 0;
+        for (int page = ps; page <= pe && page < (chunks.length << CHUNK_SHIFT); page++) {
+            final Sh2Block[][] chunk = chunks[page >>> CHUNK_SHIFT];
+            final Sh2Block[] list = chunk != null ? chunk[page & ((1 << CHUNK_SHIFT) - 1)] : null;
+            if (list == null) {
+                continue;
+            }
+            for (Sh2Block b : list) {
+                final int bs = b.prefetchPc & mask;
+                //inclusive, start of the last word
+                final int be = bs + ((b.prefetchLenWords - 1) << 1);
+                //a block starting on a previous page has been found already
+                if (bs > me || be < ms || (page > ps && (bs >>> PAGE_SHIFT) < page)) {
+                    continue;
+                }
+                if (n < out.length) {
+                    out[n] = b;
+                }
+                n++;
+            }
+        }
+        return n;
+    }
+
+    public static void clear() {
+        for (int cpu = 0; cpu < pages.length; cpu++) {
+            for (int i = 0; i < S32xDict.SH2_PC_AREAS; i++) {
+                final int size = Sh2Debug.pcAreaMaskMap[i] + 1;
+                final boolean alloc = (i & CACHE_THROUGH_AREA_BIT) == 0 && size > 1;
+                pages[cpu][i] = alloc ? new int[Math.max(1, size >>> (PAGE_SHIFT + 5))] : new int[0];
+                blocks[cpu][i] = EMPTY_CHUNKS;
+            }
+        }
+    }
+
+    private static Sh2Block[][][] getChunks(int cpu, int area) {
+        final int a = area & ~CACHE_THROUGH_AREA_BIT;
+        if (blocks[cpu][a] == EMPTY_CHUNKS) {
+            final int numPages = (Sh2Debug.pcAreaMaskMap[area] + 1) >>> PAGE_SHIFT;
+            blocks[cpu][a] = new Sh2Block[Math.max(1, numPages >>> CHUNK_SHIFT)][][];
+        }
+        return blocks[cpu][a];
+    }
+
+    private static int indexOf(Sh2Block[] list, Sh2Block b) {
+        for (int i = 0; i < list.length; i++) {
+            if (list[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -24,7 +24,6 @@ import java.util.Arrays;
 
 import static omegadrive.util.Util.readBufferWord;
 import static omegadrive.util.Util.th;
-import static s32x.sh2.Sh2Helper.Sh2PcInfoWrapper.HASH_CODE_MASK;
 
 /**
  * Federico Berti
@@ -48,6 +47,8 @@ public class Sh2Prefetch implements Sh2Prefetcher {
     private final Sh2DrcContext[] drcContext;
     private final Sh2.Sh2Config sh2Config;
     private final int[] opcodeWords;
+    //blocks hit by a write, see Sh2CodePages
+    private Sh2Block[] overlapping = new Sh2Block[8];
 
     public final int romSize, romMask;
     public final BiosHolder.BiosData[] bios;
@@ -72,6 +73,8 @@ public class Sh2Prefetch implements Sh2Prefetcher {
         public Sh2Instructions.Sh2BaseInstruction sh2Inst;
         public BytecodeContext delaySlotCtx;
         public boolean delaySlot;
+        //the T flag produced by this instruction is never consumed, see Ow2DrcOptimizer::tFlagDeadMask
+        public boolean tFlagDead;
     }
 
     public Sh2Prefetch(Sh2Bus memory, Sh2Cache[] cache, Sh2DrcContext[] sh2Ctx) {
@@ -84,7 +87,7 @@ public class Sh2Prefetch implements Sh2Prefetcher {
         sdram = mdc.sdram;
         rom = mdc.rom;
         bios = mdc.bios;
-        opcodeWords = new int[Sh2Block.MAX_INST_LEN];
+        opcodeWords = new int[Sh2Block.SH2_DRC_MAX_BLOCK_SPAN_BYTES >> 1];
         sh2Config = Sh2.Sh2Config.get();
         baseBlock = new Sh2Block(0, CpuDeviceAccess.MASTER);
     }
@@ -113,15 +116,12 @@ public class Sh2Prefetch implements Sh2Prefetcher {
         final boolean tryRecycleBlock = ENABLE_BLOCK_RECYCLING && !piw.knownBlocks.isEmpty();
         Sh2Block res = Sh2Block.INVALID_BLOCK; //new block, add it to the list
         if (tryRecycleBlock) {
-            Sh2Block entry = piw.knownBlocks.getOrDefault(baseBlock.hashCodeWords & HASH_CODE_MASK, Sh2Block.INVALID_BLOCK);
+            Sh2Block entry = piw.getKnownBlock(baseBlock.hashCodeWords, opcodeWords, baseBlock.prefetchLenWords);
+            if (entry.isSuperblock() && !isSuperblockUnchanged(entry, baseBlock)) {
+                piw.removeKnownBlock(entry);
+                entry = Sh2Block.INVALID_BLOCK;
+            }
             if (entry != Sh2Block.INVALID_BLOCK) {
-                //check for collisions on the 16-bit hashcode
-                if (entry.hashCodeWords != baseBlock.hashCodeWords) {
-                    LOG.error("Hash collision:\n{}\n{}", baseBlock, entry);
-                    return Sh2Block.INVALID_BLOCK;
-                }
-                assert Arrays.equals(entry.prefetchWords, 0, baseBlock.prefetchLenWords,
-                        opcodeWords, 0, baseBlock.prefetchLenWords);
                 entry.setValid();
                 entry.nextBlock = Sh2Block.INVALID_BLOCK;
                 if (verbose && entry.isPollingBlock()) {
@@ -136,6 +136,19 @@ public class Sh2Prefetch implements Sh2Prefetcher {
         return res;
     }
 
+    /**
+     * The known superblock matches the base block, check the words past the bt/bf.
+     * Only the words after baseBlock.prefetchLenWords are overwritten.
+     */
+    private boolean isSuperblockUnchanged(Sh2Block superblock, Sh2Block baseBlock) {
+        final boolean noJump = baseBlock.isNoJump();
+        final int wordsCount = fillOpcodes(superblock.getCpu(), superblock.prefetchPc, baseBlock.start,
+                baseBlock.fetchBuffer, baseBlock, opcodeWords, true);
+        baseBlock.setNoJump(noJump);
+        return wordsCount == superblock.prefetchLenWords &&
+                Arrays.equals(superblock.prefetchWords, 0, wordsCount, opcodeWords, 0, wordsCount);
+    }
+
     private void populate(Sh2Block from, Sh2Block to) {
         to.start = from.start;
         to.pcMasked = from.pcMasked;
@@ -171,13 +184,17 @@ public class Sh2Prefetch implements Sh2Prefetcher {
     }
 
     private int fillOpcodes(CpuDeviceAccess cpu, int pc, Sh2Block block) {
-        return fillOpcodes(cpu, pc, block.start, block.fetchBuffer, block, opcodeWords);
+        return fillOpcodes(cpu, pc, block.start, block.fetchBuffer, block, opcodeWords, false);
     }
 
+    /**
+     * @param superblock keep going past forward bt/bf, up to SH2_DRC_MAX_SUPERBLOCK_LEN_BYTES
+     */
     private int fillOpcodes(CpuDeviceAccess cpu, int pc, int blockStart, ByteBuffer fetchBuffer,
-                            Sh2Block block, int[] opcodeWords) {
+                            Sh2Block block, int[] opcodeWords, boolean superblock) {
         final Sh2Cache sh2Cache = cache[cpu.ordinal()];
-        final int pcLimit = pc + Sh2Block.SH2_DRC_MAX_BLOCK_LEN_BYTES - 2;
+        final int pcLimit = pc + (superblock ? Sh2Block.SH2_DRC_MAX_SUPERBLOCK_LEN_BYTES :
+                Sh2Block.SH2_DRC_MAX_BLOCK_LEN_BYTES) - 2;
         final boolean isCache = (pc >>> PC_CACHE_AREA_SHIFT) == 0 && sh2Cache.getCacheContext().cacheEn > 0;
         final Sh2Instructions.Sh2InstructionWrapper[] op = Sh2Instructions.instOpcodeMap;
         boolean breakOnJump = false;
@@ -192,6 +209,12 @@ public class Sh2Prefetch implements Sh2Prefetcher {
                 LOG.error("{} Invalid fetch, start PC: {}, current: {} opcode: {}", cpu, th(pc), th(bytePos), th(val));
                 break;
             }
+            //the last word cannot be a bt/bf, see NO_JUMP_FLAG
+            if (superblock && isForwardCondBranch(inst, val) && currentPc + 2 < pcLimit) {
+                bytePos += 2;
+                currentPc += 2;
+                continue;
+            }
             if (inst.isBranch) {
                 if (inst.isBranchDelaySlot) {
                     int nextVal = isCache ? sh2Cache.readDirect(currentPc + 2, Size.WORD) :
@@ -211,6 +234,50 @@ public class Sh2Prefetch implements Sh2Prefetcher {
         return wordsCount;
     }
 
+    private static boolean isForwardCondBranch(Sh2Instructions.Sh2BaseInstruction inst, int opcode) {
+        return (inst == Sh2Instructions.Sh2BaseInstruction.BT || inst == Sh2Instructions.Sh2BaseInstruction.BF)
+                && (byte) (opcode & 0xFF) >= 0;
+    }
+
+    /**
+     * Superblocks: a hot block ending with a forward bt/bf is extended with the not-taken path,
+     * the taken branch becomes a side exit.
+     * Backward branches are left alone, they are loops and pollers.
+     */
+    @Override
+    public void extendBlock(Sh2Block block) {
+        if (block.isSuperblock() || !block.isValid() || block.isNoJump()) {
+            return;
+        }
+        final int lastWord = block.prefetchWords[block.prefetchLenWords - 1];
+        if (!isForwardCondBranch(Sh2Instructions.instOpcodeMap[lastWord].inst, lastWord)) {
+            return;
+        }
+        final CpuDeviceAccess cpu = block.getCpu();
+        final int wordsCount = fillOpcodes(cpu, block.prefetchPc, block.start, block.fetchBuffer,
+                baseBlock, opcodeWords, true);
+        assert wordsCount > 0 && wordsCount <= opcodeWords.length;
+        if (wordsCount <= block.prefetchLenWords || !Arrays.equals(block.prefetchWords, 0, block.prefetchLenWords,
+                opcodeWords, 0, block.prefetchLenWords)) {
+            return;
+        }
+        //still recycled via the base block words, see Sh2KnownBlocks
+        block.baseLenWords = block.prefetchLenWords;
+        block.baseHashCodeWords = block.hashCodeWords;
+        Sh2CodePages.removeBlock(block);
+        block.setSuperblock(true);
+        block.setNoJump(baseBlock.isNoJump());
+        block.prefetchLenWords = wordsCount;
+        block.hashCodeWords = S32xUtil.hashCode(opcodeWords, wordsCount);
+        block.end = block.start + ((wordsCount - 1) << 1);
+        block.prefetchWords = Arrays.copyOf(opcodeWords, wordsCount);
+        block.inst = null;
+        block.stage1(Sh2Instructions.generateInst(block.prefetchWords));
+        Sh2CodePages.addBlock(block);
+        if (verbose) LOG.info("{} superblock at pc: {}, len: {}\n{}", cpu,
+                th(block.prefetchPc), block.prefetchLenWords, Sh2Helper.toListOfInst(block));
+    }
+
     private void setupPrefetch(final Sh2Block block, final int pc, CpuDeviceAccess cpu) {
         block.start = pc & 0xFF_FFFF;
         switch (pc >> S32xDict.SH2_PC_AREA_SHIFT) {
@@ -276,6 +343,7 @@ public class Sh2Prefetch implements Sh2Prefetcher {
             LOG.warn("{} New block generated at PC: {}\nPrev: {}\nNew : {}", cpu, th(pc), prev, block);
         }
         piw.setBlock(block);
+        Sh2CodePages.addBlock(block);
         fetchResult.block = block;
     }
 
@@ -333,6 +401,15 @@ public class Sh2Prefetch implements Sh2Prefetcher {
         invalidateMemoryRegion(addr, cpuWrite, addr + size.getByteSize() - 1, val);
     }
 
+    @Override
+    public void dataWriteRange(CpuDeviceAccess cpuWrite, int addr, int end) {
+        if (Sh2Debug.pcAreaMaskMap[addr >>> S32xDict.SH2_PC_AREA_SHIFT] == 0) return;
+        if (addr >= 0 && addr < 0x100) { //Doom res 2.2
+            return;
+        }
+        invalidateMemoryRegion(addr, cpuWrite, end, 0);
+    }
+
     public static void checkPoller(CpuDeviceAccess cpuWrite, S32xDict.S32xRegType type, int addr, int val, Size size) {
         checkPoller(cpuWrite, PollSysEventManager.SysEvent.valueOf(type.name()), addr, val, size);
     }
@@ -384,44 +461,43 @@ public class Sh2Prefetch implements Sh2Prefetcher {
         if (ignore) {
             return;
         }
-        final CpuDeviceAccess otherCpu = CpuDeviceAccess.cdaValues[(blockOwner.ordinal() + 1) & 1];
+        invalidateOverlappingBlocks(blockOwner, addr, wend, val);
         final boolean isWriteThrough = addr >>> PC_CACHE_AREA_SHIFT == 2;
-        final int addrEven = (addr & ~1);
-        //find closest block, long requires starting at +2
-        for (int i = addrEven + 2; i > addrEven - Sh2Block.SH2_DRC_MAX_BLOCK_LEN_BYTES; i -= 2) {
-            Sh2PcInfoWrapper piw = Sh2Helper.getOrDefault(i, blockOwner);
-            assert piw != null;
-            if (piw == Sh2Helper.SH2_NOT_VISITED || !piw.block.isValid()) {
-                continue;
-            }
-            final Sh2Block b = piw.block;
-            final int bend = b.prefetchPc + ((b.prefetchLenWords - 1) << 1); //inclusive
-            if (rangeIntersect(b.prefetchPc, bend, addr, wend)) {
-                invalidateMemoryLocationForCpu(blockOwner, piw, addr, i, val);
-                if (isWriteThrough) {
-                    invalidateMemoryLocationForCpu(otherCpu, addr, i, val);
-                }
-            }
-            //TODO slow, enabling this needs the nested block attribute implemented
-//            break;
+        if (isWriteThrough) {
+            final CpuDeviceAccess otherCpu = CpuDeviceAccess.cdaValues[(blockOwner.ordinal() + 1) & 1];
+            invalidateOverlappingBlocks(otherCpu, addr, wend, val);
         }
     }
 
-    private void invalidateMemoryLocationForCpu(CpuDeviceAccess cpu, Sh2PcInfoWrapper piw, int addr, int i, int val) {
-        final boolean isCpuCacheOff = cache[cpu.ordinal()].getCacheContext().cacheEn == 0;
-        if (piw != Sh2Helper.SH2_NOT_VISITED && piw.block.isValid()) {
-            invalidateWrapper(addr, piw, false, val);
+    /**
+     * Blocks at the same address as the write, cached blocks too when the cpu cache is off.
+     */
+    private void invalidateOverlappingBlocks(CpuDeviceAccess cpu, int addr, int wend, int val) {
+        //data only pages
+        if (!Sh2CodePages.isCode(cpu, addr, wend)) {
+            return;
         }
-        if (isCpuCacheOff) {
-            piw = Sh2Helper.getOrDefault(i & S32xDict.SH2_CACHE_THROUGH_MASK, cpu);
-            if (piw != Sh2Helper.SH2_NOT_VISITED && piw.block.isValid()) {
-                invalidateWrapper(addr, piw, false, val);
+        final int area = addr >>> S32xDict.SH2_PC_AREA_SHIFT;
+        final int cachedArea = (addr & S32xDict.SH2_CACHE_THROUGH_MASK) >>> S32xDict.SH2_PC_AREA_SHIFT;
+        final boolean isCpuCacheOff = cache[cpu.ordinal()].getCacheContext().cacheEn == 0;
+        final int n = getOverlappingBlocks(cpu, addr, wend);
+        for (int i = 0; i < n; i++) {
+            final Sh2Block b = overlapping[i];
+            final int blockArea = b.prefetchPc >>> S32xDict.SH2_PC_AREA_SHIFT;
+            if (b.isValid() && (blockArea == area || (isCpuCacheOff && blockArea == cachedArea))) {
+                assert Sh2Helper.get(b.prefetchPc, cpu).block == b;
+                invalidateWrapper(addr, Sh2Helper.get(b.prefetchPc, cpu), false, val);
             }
         }
     }
 
-    private void invalidateMemoryLocationForCpu(CpuDeviceAccess cpu, int addr, int i, int val) {
-        invalidateMemoryLocationForCpu(cpu, Sh2Helper.getOrDefault(i, cpu), addr, i, val);
+    private int getOverlappingBlocks(CpuDeviceAccess cpu, int start, int end) {
+        int n = Sh2CodePages.getBlocks(cpu, start, end, overlapping);
+        if (n > overlapping.length) {
+            overlapping = new Sh2Block[n << 1];
+            n = Sh2CodePages.getBlocks(cpu, start, end, overlapping);
+        }
+        return n;
     }
 
     static final int RANGE_MASK = 0xFFF_FFFF;
@@ -465,6 +541,7 @@ public class Sh2Prefetch implements Sh2Prefetcher {
             assert b.getCpu() != null;
             piw.addToKnownBlocks(b);
         }
+        Sh2CodePages.removeBlock(b);
         piw.invalidateBlock();
     }
 
@@ -489,14 +566,17 @@ public class Sh2Prefetch implements Sh2Prefetcher {
         if (ignore) {
             return;
         }
-        final int addrEven = end;
-        for (int i = addrEven; i > addr - Sh2Block.SH2_DRC_MAX_BLOCK_LEN_BYTES; i -= 2) {
-            Sh2PcInfoWrapper piw = Sh2Helper.getOrDefault(i, ctx.cpu);
-            assert piw != null;
-            if (piw == Sh2Helper.SH2_NOT_VISITED || !piw.block.isValid()) {
-                continue;
+        if (!Sh2CodePages.isCode(ctx.cpu, addr, end - 1)) {
+            return;
+        }
+        final int area = addr >>> S32xDict.SH2_PC_AREA_SHIFT;
+        final int n = getOverlappingBlocks(ctx.cpu, addr, end - 1);
+        for (int i = 0; i < n; i++) {
+            final Sh2Block b = overlapping[i];
+            if (b.isValid() && b.prefetchPc >>> S32xDict.SH2_PC_AREA_SHIFT == area) {
+                assert Sh2Helper.get(b.prefetchPc, ctx.cpu).block == b;
+                invalidateWrapper(b.prefetchPc, Sh2Helper.get(b.prefetchPc, ctx.cpu), true, -1);
             }
-            invalidateWrapper(i, piw, true, -1);
         }
     }
 
@@ -6,6 +6,7 @@ import org.slf4j.Logger;
 import s32x.sh2.Sh2;
 import s32x.sh2.Sh2Instructions;
 import s32x.sh2.cache.Sh2Cache;
+import s32x.sh2.drc.Sh2Block;
 import s32x.util.S32xUtil;
 
 import java.util.StringJoiner;
@@ -30,9 +31,24 @@ public interface Sh2Prefetcher {
     default void dataWrite(S32xUtil.CpuDeviceAccess cpu, int addr, int val, Size size) {
     }
 
+    /**
+     * Data written to [addr, end], ie. a whole dma transfer, any length.
+     */
+    default void dataWriteRange(S32xUtil.CpuDeviceAccess cpu, int addr, int end) {
+        for (int a = addr & ~1; a <= end; a += 2) {
+            dataWrite(cpu, a, 0, Size.WORD);
+        }
+    }
+
     default void newFrame() {
     }
 
+    /**
+     * Called when a block becomes hot, before compiling it.
+     */
+    default void extendBlock(Sh2Block block) {
+    }
+
     class Sh2BlockUnit extends Sh2Instructions.Sh2InstructionWrapper {
         public Sh2BlockUnit next;
         public int pc;
@@ -0,0 +1,108 @@
+package s32x.util;
+
+import omegadrive.util.Fifo;
+import omegadrive.util.LogHelper;
+import org.slf4j.Logger;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Federico Berti
+ * <p>
+ * Copyright 2023
+ * <p>
+ * Fixed size fifo of primitive ints, same semantics as omegadrive.util.Fifo without boxing.
+ */
+public class IntFifo implements Serializable {
+
+    @Serial
+    private static final long serialVersionUID = 4226094733421880392L;
+
+    private static final Logger LOG = LogHelper.getLogger(IntFifo.class.getSimpleName());
+
+    private final int[] fifo;
+    private final int fifoSize;
+    private int popPointer, pushPointer, currentSize;
+
+    public IntFifo(int size) {
+        this.fifoSize = size;
+        this.fifo = new int[size];
+    }
+
+    /**
+     * A fifo read back from a save state, older states store an omegadrive.util.Fifo<Integer>.
+     */
+    public static IntFifo fromState(Object o, int size) {
+        if (o instanceof IntFifo f) {
+            return f;
+        }
+        IntFifo f = new IntFifo(size);
+        if (o instanceof Fifo<?> legacy) {
+            while (!legacy.isEmpty()) {
+                f.push((Integer) legacy.pop());
+            }
+        }
+        return f;
+    }
+
+    public void push(int data) {
+        if (isFull()) {
+            LOG.info("FIFO full");
+            return;
+        }
+        fifo[pushPointer] = data;
+        pushPointer = pushPointer + 1 == fifoSize ? 0 : pushPointer + 1;
+        currentSize++;
+    }
+
+    //returns 0 when empty
+    public int pop() {
+        if (isEmpty()) {
+            LOG.info("FIFO empty");
+            return 0;
+        }
+        int entry = fifo[popPointer];
+        popPointer = popPointer + 1 == fifoSize ? 0 : popPointer + 1;
+        currentSize--;
+        return entry;
+    }
+
+    public int peek() {
+        return fifoSize > 0 ? fifo[popPointer] : 0;
+    }
+
+    public boolean isEmpty() {
+        return currentSize == 0;
+    }
+
+    public boolean isFull() {
+        return currentSize >= fifoSize;
+    }
+
+    /**
+     * @return the current size of the fifo
+     */
+    public int getLevel() {
+        return currentSize;
+    }
+
+    public int isEmptyBit() {
+        return currentSize == 0 ? 1 : 0;
+    }
+
+    public int isFullBit() {
+        return currentSize >= fifoSize ? 1 : 0;
+    }
+
+    public void clear() {
+        popPointer = pushPointer = currentSize = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "IntFifo{level=" + currentSize + ", push=" + pushPointer + ", pop=" + popPointer +
+                ", fifo=" + Arrays.toString(fifo) + '}';
+    }
+}
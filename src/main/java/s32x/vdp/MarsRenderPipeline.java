@@ -0,0 +1,121 @@
+package s32x.vdp;
+
+import omegadrive.util.LogHelper;
+import omegadrive.util.VideoMode;
+import org.slf4j.Logger;
+import s32x.util.S32xUtil;
+
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Federico Berti
+ * <p>
+ * Copyright 2023
+ * <p>
+ * Renders and composites frames on a separate thread, the emulation thread hands off the vdp snapshot taken
+ * at vblank and a copy of the md screen then continues with the next frame.
+ * At most one frame is rendering and one is queued, a frame is dropped when both slots are busy.
+ */
+public class MarsRenderPipeline {
+
+    private static final Logger LOG = LogHelper.getLogger(MarsRenderPipeline.class.getSimpleName());
+
+    public static final boolean RENDER_THREAD =
+            Boolean.parseBoolean(System.getProperty("helios.32x.vdp.renderThread", "false"));
+
+    private static final int NUM_JOBS = 2;
+    private static final boolean verbose = false;
+
+    public interface FrameSink {
+        void render(VideoMode videoMode, int[] data, Optional<String> stats);
+    }
+
+    private static class FrameJob {
+        private MarsVdpImpl.FrameSnapshot snapshot;
+        private int[] mdData = S32xUtil.EMPTY_INT_ARRAY;
+        private VideoMode mdVideoMode;
+        private Optional<String> stats;
+    }
+
+    private final MarsVdpImpl vdp;
+    private final FrameSink sink;
+    private final ArrayBlockingQueue<FrameJob> freeJobs = new ArrayBlockingQueue<>(NUM_JOBS);
+    private final ArrayBlockingQueue<FrameJob> pendingJobs = new ArrayBlockingQueue<>(NUM_JOBS);
+    private final Thread renderThread;
+    private volatile boolean running = true;
+    private int droppedFrames;
+
+    public static Optional<MarsRenderPipeline> createInstance(MarsVdp vdp, FrameSink sink) {
+        if (!RENDER_THREAD || !(vdp instanceof MarsVdpImpl)) {
+            return Optional.empty();
+        }
+        return Optional.of(new MarsRenderPipeline((MarsVdpImpl) vdp, sink));
+    }
+
+    private MarsRenderPipeline(MarsVdpImpl vdp, FrameSink sink) {
+        this.vdp = vdp;
+        this.sink = sink;
+        //one rendering, one queued, one being filled at vblank
+        vdp.enableFrameSnapshots(NUM_JOBS + 1);
+        for (int i = 0; i < NUM_JOBS; i++) {
+            freeJobs.add(new FrameJob());
+        }
+        renderThread = new Thread(this::renderLoop, "marsRender");
+        renderThread.setDaemon(true);
+        renderThread.start();
+        LOG.info("Render thread enabled");
+    }
+
+    /**
+     * Emulation thread, end of frame.
+     */
+    public void submit(VideoMode mdVideoMode, int[] mdData, Optional<String> stats) {
+        final FrameJob job = freeJobs.poll();
+        if (job == null) {
+            //the snapshot stays with the vdp and is replaced at the next vblank
+            droppedFrames++;
+            if (verbose) LOG.info("Frame dropped, total: {}", droppedFrames);
+            return;
+        }
+        if (job.mdData.length != mdData.length) {
+            job.mdData = new int[mdData.length];
+        }
+        System.arraycopy(mdData, 0, job.mdData, 0, mdData.length);
+        job.mdVideoMode = mdVideoMode;
+        job.stats = stats;
+        job.snapshot = vdp.pollFrameSnapshot();
+        pendingJobs.add(job);
+    }
+
+    private void renderLoop() {
+        while (running) {
+            FrameJob job;
+            try {
+                job = pendingJobs.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                int[] out = vdp.renderFrameSnapshot(job.mdVideoMode, job.mdData, job.snapshot);
+                MarsVdp.MarsVdpContext vc = vdp.getSnapshotVdpContext();
+                sink.render(vc != null ? vc.videoMode : job.mdVideoMode, out, job.stats);
+            } catch (Exception e) {
+                LOG.error("Render error", e);
+            } finally {
+                vdp.releaseFrameSnapshot(job.snapshot);
+                job.snapshot = null;
+                freeJobs.add(job);
+            }
+        }
+    }
+
+    public int getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    public void stop() {
+        running = false;
+        renderThread.interrupt();
+    }
+}
@@ -8,11 +8,13 @@ import omegadrive.util.VideoMode;
 import omegadrive.vdp.util.UpdatableViewer;
 import org.slf4j.Logger;
 import s32x.dict.S32xDict;
+import s32x.util.S32xUtil;
 
 import java.awt.*;
 import java.io.IOException;
 import java.io.Serial;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
@@ -42,6 +44,17 @@ public interface MarsVdp extends Device {
 
     int read(int address, Size size);
 
+    /**
+     * Dma bulk write of len bytes to the frame buffer or the overwrite image, address as in write,
+     * the result is the same as writing the data one unit at a time.
+     */
+    default void writeFrameBuffer(int address, byte[] data, int pos, int len, Size unit) {
+        final ByteBuffer bb = ByteBuffer.wrap(data);
+        for (int i = 0; i < len; i += unit.getByteSize()) {
+            write(address + i, S32xUtil.readBuffer(bb, pos + i, unit), unit);
+        }
+    }
+
     boolean vdpRegWrite(S32xDict.RegSpecS32x regSpec, int reg, int value, Size size);
 
     void draw(MarsVdpContext context);
@@ -18,11 +18,13 @@ import s32x.util.Md32xRuntimeData;
 import s32x.util.S32xUtil;
 import s32x.vdp.debug.MarsVdpDebugView;
 
+import java.awt.*;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.nio.ShortBuffer;
 import java.util.Arrays;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
 
 import static omegadrive.util.Util.readBufferByte;
 import static omegadrive.util.Util.th;
@@ -56,13 +58,69 @@ public class MarsVdpImpl implements MarsVdp {
         private boolean wasBlankScreen = false;
     }
 
+    //last image rendered from a framebuffer and the blocks written since then
+    private static class FbRenderCache {
+        private final long[] dirtyBlocks = new long[DIRTY_BLOCKS >> 6];
+        private final short[] fbWords = new short[DRAM_SIZE >> 1];
+        private final short[] palette = new short[SIZE_32X_COLPAL >> 1];
+        //palette entries as rgb with the priority bit
+        private final int[] paletteColor = new int[SIZE_32X_COLPAL >> 1];
+        private final int[] lineTable = new int[LINE_TABLE_WORDS];
+        //run length mode, end (exclusive) of the words used by each line
+        private final int[] lineEnd = new int[LINE_TABLE_WORDS];
+        private int[] image = S32xUtil.EMPTY_INT_ARRAY;
+        private BitmapMode bitmapMode;
+        private VideoMode videoMode;
+        private int screenShift, paletteVersion;
+        private boolean valid, full;
+
+        private boolean isLineDirty(int row, int lineTableEntry, int startWord, int endWord) {
+            if (full || lineTable[row] != lineTableEntry) {
+                lineTable[row] = lineTableEntry;
+                return true;
+            }
+            final int last = Math.min(endWord, fbWords.length) - 1;
+            for (int blk = startWord >> DIRTY_BLOCK_WORD_SHIFT; blk <= last >> DIRTY_BLOCK_WORD_SHIFT; blk++) {
+                if ((dirtyBlocks[blk >> 6] & (1L << blk)) != 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Display state captured at vblank, rendered later on the render pipeline thread.
+     */
+    public static class FrameSnapshot {
+        private final short[] fb = new short[DRAM_SIZE >> 1];
+        private final short[] palette = new short[SIZE_32X_COLPAL >> 1];
+        private final MarsVdpContext vdpContext = new MarsVdpContext();
+    }
+
+    //re-render only the lines whose line table entry, source words or palette changed
+    private static final boolean DIRTY_LINES = Boolean.parseBoolean(System.getProperty("helios.32x.vdp.dirtyLines", "true"));
+    private static final int DIRTY_BLOCK_SHIFT = 7; //128 bytes
+    private static final int DIRTY_BLOCK_WORD_SHIFT = DIRTY_BLOCK_SHIFT - 1;
+    private static final int DIRTY_BLOCKS = DRAM_SIZE >> DIRTY_BLOCK_SHIFT;
+
     private final ByteBuffer colorPalette = ByteBuffer.allocate(SIZE_32X_COLPAL);
     private final ByteBuffer[] dramBanks = new ByteBuffer[2];
 
     private final ShortBuffer[] frameBuffersWord = new ShortBuffer[NUM_FB];
     private final ShortBuffer colorPaletteWords = colorPalette.asShortBuffer();
-    private final short[] fbDataWords = new short[DRAM_SIZE >> 1];
-    private final int[] lineTableWords = new int[LINE_TABLE_WORDS];
+    private final FbRenderCache[] renderCache = {new FbRenderCache(), new FbRenderCache()};
+    //incremented when the palette content changes
+    private int paletteVersion;
+
+    //render pipeline, null when rendering on the emulation thread
+    private ArrayBlockingQueue<FrameSnapshot> freeSnapshots;
+    private FrameSnapshot latestSnapshot;
+    private final FbRenderCache[] snapshotRenderCache = {new FbRenderCache(), new FbRenderCache()};
+    private FbRenderCache lastSnapshotRenderCache;
+    private final MarsVdpRenderContext snapshotRenderContext = new MarsVdpRenderContext();
+    //the snapshot goes back to the emulation thread after rendering, keep a copy
+    private final MarsVdpContext snapshotVdpContext = new MarsVdpContext();
 
     private ByteBuffer vdpRegs;
     private MarsVdpDebugView view;
@@ -75,8 +133,22 @@ public class MarsVdpImpl implements MarsVdp {
     private int[] buffer;
     private static final boolean verbose = false, verboseRead = false;
 
+    //bgr555 + priority to rgb, encodes priority as the LSB (bit) of the word
+    private static final int[] directColorWithPriority = new int[0x10000];
+
+    //composite and stretch via the Vector API, only when the jvm runs with --add-modules jdk.incubator.vector
+    static final boolean VECTOR_COMPOSITE =
+            Boolean.parseBoolean(System.getProperty("helios.32x.vdp.vector", "true")) &&
+                    ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
     static {
         MarsVdp.initBgrMapper();
+        for (int i = 0; i < directColorWithPriority.length; i++) {
+            directColorWithPriority[i] = (bgr5toRgb8Mapper[i] & ~1) | ((i >> 15) & 1);
+        }
+        if (VECTOR_COMPOSITE) {
+            LOG.info("Vector composite enabled: {}", VectorComposite.getInfo());
+        }
     }
 
     //for testing
@@ -121,8 +193,11 @@ public class MarsVdpImpl implements MarsVdp {
         if (address >= S32xDict.START_32X_COLPAL_CACHE && address < S32xDict.END_32X_COLPAL_CACHE) {
             assert Md32xRuntimeData.getAccessTypeExt() != S32xUtil.CpuDeviceAccess.Z80;
             switch (size) {
-                case WORD, LONG ->
-                        S32xUtil.writeBufferRaw(colorPalette, address & S32xDict.S32X_COLPAL_MASK, value, size);
+                case WORD, LONG -> {
+                    if (S32xUtil.writeBufferRaw(colorPalette, address & S32xDict.S32X_COLPAL_MASK, value, size)) {
+                        paletteVersion++;
+                    }
+                }
                 default ->
                         LOG.error(Md32xRuntimeData.getAccessTypeExt() + " write, unable to access colorPalette as " + size);
             }
@@ -131,7 +206,9 @@ public class MarsVdpImpl implements MarsVdp {
             if (size == Size.BYTE && value == 0) { //value =0 on byte is ignored
                 return;
             }
-            S32xUtil.writeBufferRaw(dramBanks[vdpContext.frameBufferWritable], address & S32xDict.DRAM_MASK, value, size);
+            if (S32xUtil.writeBufferRaw(dramBanks[vdpContext.frameBufferWritable], address & S32xDict.DRAM_MASK, value, size)) {
+                markDirty(vdpContext.frameBufferWritable, address);
+            }
             S32xMemAccessDelay.addWriteCpuDelay(S32xMemAccessDelay.FRAME_BUFFER);
         } else if (address >= S32xDict.START_OVER_IMAGE_CACHE && address < S32xDict.END_OVER_IMAGE_CACHE) {
             //see Space Harrier, brutal, doom resurrection
@@ -281,11 +358,15 @@ public class MarsVdpImpl implements MarsVdp {
         if (verbose) LOG.info("AutoFill startWord {}, len(word) {}, data {}", th(startAddrWord), th(len), th(data));
         final int dataWord = data & 0xFFFF;
         int afsarEnd = wordAddrFixed + (len & 0xFF);
+        final int bank = buffer == dramBanks[0] ? 0 : (buffer == dramBanks[1] ? 1 : -1);
 //        assert ((startAddrWord + len) & 0xFF) >= wordAddrVariable;
         do {
             //TODO this should trigger an invalidate on framebuf mem?
             //TODO anyone executing code from the framebuffer?
             S32xUtil.writeBufferRaw(buffer, (wordAddrFixed + wordAddrVariable) << 1, dataWord, Size.WORD);
+            if (bank >= 0) {
+                markDirty(bank, (wordAddrFixed + wordAddrVariable) << 1);
+            }
             if (verbose) LOG.info("AutoFill addr(word): {}, addr(byte): {}, len(word) {}, data(word) {}",
                     th(wordAddrFixed + wordAddrVariable), th((wordAddrFixed + wordAddrVariable) << 1), th(len), th(dataWord));
             wordAddrVariable = (wordAddrVariable + 1) & 0xFF;
@@ -398,16 +479,61 @@ public class MarsVdpImpl implements MarsVdp {
     private void writeFrameBufferByte(int address, int value) {
         if (value != 0) {
             dramBanks[vdpContext.frameBufferWritable].put(address & S32xDict.DRAM_MASK, (byte) value);
+            markDirty(vdpContext.frameBufferWritable, address);
         }
     }
 
+    private void markDirty(int bank, int address) {
+        final int blk = (address & S32xDict.DRAM_MASK) >> DIRTY_BLOCK_SHIFT;
+        renderCache[bank].dirtyBlocks[blk >> 6] |= 1L << blk;
+    }
+
+    @Override
+    public void writeFrameBuffer(int address, byte[] data, int pos, int len, Size unit) {
+        final int bank = vdpContext.frameBufferWritable;
+        final byte[] fb = dramBanks[bank].array();
+        final int start = address & S32xDict.DRAM_MASK;
+        assert start + len <= DRAM_SIZE;
+        //zero bytes are ignored by byte writes and by the overwrite image
+        if (unit == Size.BYTE || address >= S32xDict.START_OVER_IMAGE_CACHE) {
+            for (int i = 0; i < len; i++) {
+                final byte v = data[pos + i];
+                if (v != 0 && fb[start + i] != v) {
+                    fb[start + i] = v;
+                    markDirty(bank, start + i);
+                }
+            }
+            return;
+        }
+        final int first = Arrays.mismatch(data, pos, pos + len, fb, start, start + len);
+        if (first < 0) {
+            return;
+        }
+        System.arraycopy(data, pos, fb, start, len);
+        final int end = start + len - 1;
+        for (int a = start + first; a <= end; a += 1 << DIRTY_BLOCK_SHIFT) {
+            markDirty(bank, a);
+        }
+        markDirty(bank, end);
+    }
+
+    private void invalidateRenderCache() {
+        renderCache[0].valid = renderCache[1].valid = false;
+    }
+
     @Override
     public void draw(MarsVdpContext context) {
-        switch (context.bitmapMode) {
-            case BLANK -> drawBlank();
-            case PACKED_PX -> drawPackedPixel(context);
-            case RUN_LEN -> drawRunLen(context);
-            case DIRECT_COL -> drawDirectColor(context);
+        if (freeSnapshots != null) {
+            takeFrameSnapshot(context);
+            return;
+        }
+        if (context.bitmapMode == BitmapMode.BLANK) {
+            drawBlank();
+        } else {
+            final FbRenderCache rc = prepareRenderCache(context);
+            renderBitmap(rc, context);
+            completeRender(rc, context, buffer);
+            ctx.wasBlankScreen = false;
         }
         view.update(context, buffer);
     }
@@ -420,20 +546,202 @@ public class MarsVdpImpl implements MarsVdp {
         ctx.wasBlankScreen = true;
     }
 
+    private void renderBitmap(FbRenderCache rc, MarsVdpContext context) {
+        final int h = context.videoMode.getDimension().height;
+        switch (context.bitmapMode) {
+            case PACKED_PX -> RowBands.run(h, (from, to) -> drawPackedPixelRows(rc, context, from, to));
+            case RUN_LEN -> RowBands.run(h, (from, to) -> drawRunLenRows(rc, context, from, to));
+            case DIRECT_COL -> RowBands.run(h, (from, to) -> drawDirectColorRows(rc, context, from, to));
+        }
+    }
+
+    /**
+     * Syncs the framebuffer copy with the blocks written since the last render of this framebuffer,
+     * everything is re-rendered when the mode, shift, video mode or palette (not for direct color) changed.
+     */
+    private FbRenderCache prepareRenderCache(MarsVdpContext context) {
+        final FbRenderCache rc = renderCache[context.frameBufferDisplay];
+        final ShortBuffer b = frameBuffersWord[context.frameBufferDisplay];
+        final boolean paletteChanged = !rc.valid || rc.paletteVersion != paletteVersion;
+        rc.full = isFullRender(rc, context, buffer.length) ||
+                (context.bitmapMode != BitmapMode.DIRECT_COL && paletteChanged);
+        if (paletteChanged) {
+            colorPaletteWords.get(0, rc.palette);
+            updatePaletteColors(rc);
+        }
+        if (rc.full) {
+            if (rc.image.length != buffer.length) {
+                rc.image = new int[buffer.length];
+            }
+            b.get(0, rc.fbWords);
+        } else {
+            final int blockWords = 1 << DIRTY_BLOCK_WORD_SHIFT;
+            for (int i = 0; i < rc.dirtyBlocks.length; i++) {
+                long bits = rc.dirtyBlocks[i];
+                while (bits != 0) {
+                    final int blk = (i << 6) + Long.numberOfTrailingZeros(bits);
+                    b.get(blk << DIRTY_BLOCK_WORD_SHIFT, rc.fbWords, blk << DIRTY_BLOCK_WORD_SHIFT, blockWords);
+                    bits &= bits - 1;
+                }
+            }
+        }
+        rc.paletteVersion = paletteVersion;
+        return rc;
+    }
+
+    private static void updatePaletteColors(FbRenderCache rc) {
+        for (int i = 0; i < rc.palette.length; i++) {
+            rc.paletteColor[i] = directColorWithPriority[rc.palette[i] & 0xFFFF];
+        }
+    }
+
+    private static boolean isFullRender(FbRenderCache rc, MarsVdpContext context, int imageLen) {
+        return !DIRTY_LINES || !rc.valid || rc.bitmapMode != context.bitmapMode ||
+                rc.screenShift != context.screenShift || rc.videoMode != context.videoMode ||
+                rc.image.length != imageLen;
+    }
+
+    private static void completeRender(FbRenderCache rc, MarsVdpContext context, int[] dest) {
+        Arrays.fill(rc.dirtyBlocks, 0);
+        rc.bitmapMode = context.bitmapMode;
+        rc.screenShift = context.screenShift;
+        rc.videoMode = context.videoMode;
+        rc.valid = true;
+        System.arraycopy(rc.image, 0, dest, 0, dest.length);
+    }
+
+    /**
+     * Render pipeline, the emulation thread only copies the display state at vblank.
+     */
+    public void enableFrameSnapshots(int numSnapshots) {
+        freeSnapshots = new ArrayBlockingQueue<>(numSnapshots);
+        for (int i = 0; i < numSnapshots; i++) {
+            freeSnapshots.add(new FrameSnapshot());
+        }
+    }
+
+    private void takeFrameSnapshot(MarsVdpContext context) {
+        FrameSnapshot s = latestSnapshot != null ? latestSnapshot : freeSnapshots.poll();
+        if (s == null) {
+            LOG.warn("No free frame snapshot, skipping");
+            return;
+        }
+        copyVdpContext(context, s.vdpContext);
+        if (context.bitmapMode != BitmapMode.BLANK) {
+            frameBuffersWord[context.frameBufferDisplay].get(0, s.fb);
+            colorPaletteWords.get(0, s.palette);
+        }
+        latestSnapshot = s;
+    }
+
+    //only the fields used for rendering
+    private static void copyVdpContext(MarsVdpContext from, MarsVdpContext to) {
+        to.bitmapMode = from.bitmapMode;
+        to.priority = from.priority;
+        to.screenShift = from.screenShift;
+        to.videoMode = from.videoMode;
+        to.frameBufferDisplay = from.frameBufferDisplay;
+    }
+
+    /**
+     * @return the snapshot taken at the latest vblank, null if there was no vblank since the previous call
+     */
+    public FrameSnapshot pollFrameSnapshot() {
+        FrameSnapshot s = latestSnapshot;
+        latestSnapshot = null;
+        return s;
+    }
+
+    public void releaseFrameSnapshot(FrameSnapshot s) {
+        if (s != null) {
+            freeSnapshots.offer(s);
+        }
+    }
+
+    /**
+     * Render pipeline thread only, renders the snapshot (or reuses the previous image when null)
+     * and composites it with the md data.
+     */
+    public int[] renderFrameSnapshot(VideoMode mdVideoMode, int[] mdData, FrameSnapshot s) {
+        final MarsVdpRenderContext rctx = snapshotRenderContext;
+        if (s != null) {
+            final MarsVdpContext sc = s.vdpContext;
+            final Dimension d = sc.videoMode.getDimension();
+            if (rctx.screen == null || rctx.screen.length != d.width * d.height) {
+                rctx.screen = new int[d.width * d.height];
+            }
+            copyVdpContext(sc, snapshotVdpContext);
+            rctx.vdpContext = snapshotVdpContext;
+            if (sc.bitmapMode == BitmapMode.BLANK) {
+                Arrays.fill(rctx.screen, sc.priority.ordinal());
+                lastSnapshotRenderCache = null;
+            } else {
+                final FbRenderCache rc = snapshotRenderCache[sc.frameBufferDisplay];
+                syncRenderCache(rc, s, rctx.screen.length);
+                renderBitmap(rc, sc);
+                completeRender(rc, sc, rctx.screen);
+                lastSnapshotRenderCache = rc;
+            }
+        } else if (rctx.vdpContext != null) {
+            //compositing might have changed the screen
+            if (lastSnapshotRenderCache != null) {
+                System.arraycopy(lastSnapshotRenderCache.image, 0, rctx.screen, 0, rctx.screen.length);
+            } else {
+                Arrays.fill(rctx.screen, rctx.vdpContext.priority.ordinal());
+            }
+        }
+        if (rctx.vdpContext == null) {
+            return mdData;
+        }
+        return doCompositeRenderingExt(mdVideoMode, mdData, rctx);
+    }
+
+    /**
+     * Render pipeline thread only, null before the first snapshot.
+     */
+    public MarsVdpContext getSnapshotVdpContext() {
+        return snapshotRenderContext.vdpContext;
+    }
+
+    //blocks that differ from the snapshot are dirty
+    private static void syncRenderCache(FbRenderCache rc, FrameSnapshot s, int imageLen) {
+        final MarsVdpContext sc = s.vdpContext;
+        final boolean paletteChanged = !rc.valid || !Arrays.equals(rc.palette, s.palette);
+        rc.full = isFullRender(rc, sc, imageLen) ||
+                (sc.bitmapMode != BitmapMode.DIRECT_COL && paletteChanged);
+        if (paletteChanged) {
+            System.arraycopy(s.palette, 0, rc.palette, 0, rc.palette.length);
+            updatePaletteColors(rc);
+        }
+        if (rc.full) {
+            if (rc.image.length != imageLen) {
+                rc.image = new int[imageLen];
+            }
+            System.arraycopy(s.fb, 0, rc.fbWords, 0, rc.fbWords.length);
+            return;
+        }
+        final int blockWords = 1 << DIRTY_BLOCK_WORD_SHIFT;
+        for (int pos = 0, blk = 0; pos < rc.fbWords.length; pos += blockWords, blk++) {
+            if (Arrays.mismatch(s.fb, pos, pos + blockWords, rc.fbWords, pos, pos + blockWords) >= 0) {
+                System.arraycopy(s.fb, pos, rc.fbWords, pos, blockWords);
+                rc.dirtyBlocks[blk >> 6] |= 1L << blk;
+            }
+        }
+    }
+
     //Mars Sample Program - Pharaoh
     //space harrier intro screen
-    private void drawDirectColor(MarsVdpContext context) {
+    private static void drawDirectColorRows(FbRenderCache rc, MarsVdpContext context, int fromRow, int toRow) {
         final int w = context.videoMode.getDimension().width;
-        final int h = context.videoMode.getDimension().height;
-        final ShortBuffer b = frameBuffersWord[context.frameBufferDisplay];
-        final int[] imgData = buffer;
-        populateLineTable(b);
-        b.position(0);
-        b.get(fbDataWords);
-        final short[] fb = fbDataWords;
-
-        for (int row = 0; row < h; row++) {
-            final int linePos = lineTableWords[row] + context.screenShift;
+        final int[] imgData = rc.image;
+        final short[] fb = rc.fbWords;
+
+        for (int row = fromRow; row < toRow; row++) {
+            final int lineTableEntry = fb[row] & 0xFFFF;
+            final int linePos = lineTableEntry + context.screenShift;
+            if (!rc.isLineDirty(row, lineTableEntry, linePos, linePos + w)) {
+                continue;
+            }
             final int fbBasePos = row * w;
             for (int col = 0; col < w; col++) {
                 if (S32xUtil.assertionsEnabled) {
@@ -442,67 +750,64 @@ public class MarsVdpImpl implements MarsVdp {
                         continue;
                     }
                 }
-                imgData[fbBasePos + col] = getDirectColorWithPriority(fb[linePos + col] & 0xFFFF);
+                imgData[fbBasePos + col] = directColorWithPriority[fb[linePos + col] & 0xFFFF];
             }
         }
-        ctx.wasBlankScreen = false;
     }
 
     //space harrier sega intro
-    private void drawRunLen(MarsVdpContext context) {
-        final int h = context.videoMode.getDimension().height;
+    private static void drawRunLenRows(FbRenderCache rc, MarsVdpContext context, int fromRow, int toRow) {
         final int w = context.videoMode.getDimension().width;
-        final ShortBuffer b = frameBuffersWord[context.frameBufferDisplay];
-        final int[] imgData = buffer;
-        populateLineTable(b);
-        b.position(0);
-        b.get(fbDataWords);
+        final int[] imgData = rc.image;
+        final short[] fb = rc.fbWords;
+        final int[] palColor = rc.paletteColor;
 
-        for (int row = 0; row < h; row++) {
+        for (int row = fromRow; row < toRow; row++) {
             int col = 0;
             final int basePos = row * w;
-            final int linePos = lineTableWords[row];
+            final int linePos = fb[row] & 0xFFFF;
             int nextWord = linePos;
             if (basePos >= imgData.length) {
                 break;
             }
+            if (!rc.isLineDirty(row, linePos, linePos, rc.lineEnd[row])) {
+                continue;
+            }
             do {
-                int rl = fbDataWords[nextWord++];
+                int rl = fb[nextWord++];
                 int dotColorIdx = rl & 0xFF;
                 int dotLen = ((rl >> 8) & 0xFF) + 1;
                 int nextLimit = Math.min(col + dotLen, imgData.length - basePos);
-                int color = getColorWithPriority(dotColorIdx);
+                int color = palColor[dotColorIdx];
                 for (; col < nextLimit; col++) {
                     imgData[basePos + col] = color;
                 }
-            } while (col < w && nextWord < fbDataWords.length);
+            } while (col < w && nextWord < fb.length);
+            rc.lineEnd[row] = nextWord;
         }
-        ctx.wasBlankScreen = false;
     }
 
     //32X Sample Program - Celtic - PWM Test
-    void drawPackedPixel(MarsVdpContext context) {
-        final ShortBuffer b = frameBuffersWord[context.frameBufferDisplay];
-        final int[] imgData = buffer;
-        populateLineTable(b);
-
-        b.position(0);
-        b.get(fbDataWords);
-
-        final int h = context.videoMode.getDimension().height;
+    private static void drawPackedPixelRows(FbRenderCache rc, MarsVdpContext context, int fromRow, int toRow) {
         final int w = context.videoMode.getDimension().width;
-
-        for (int row = 0; row < h; row++) {
-            final int linePos = lineTableWords[row] + context.screenShift;
+        final int[] imgData = rc.image;
+        final short[] fb = rc.fbWords;
+        final int[] palColor = rc.paletteColor;
+
+        for (int row = fromRow; row < toRow; row++) {
+            final int lineTableEntry = fb[row] & 0xFFFF;
+            final int linePos = lineTableEntry + context.screenShift;
+            if (!rc.isLineDirty(row, lineTableEntry, linePos, linePos + (w >> 1))) {
+                continue;
+            }
             final int basePos = row * w;
             for (int col = 0, wordOffset = 0; col < w; col += 2, wordOffset++) {
-                final int palWordIdx1 = (fbDataWords[linePos + wordOffset] >> 8) & 0xFF;
-                final int palWordIdx2 = fbDataWords[linePos + wordOffset] & 0xFF;
-                imgData[basePos + col] = getColorWithPriority(palWordIdx1);
-                imgData[basePos + col + 1] = getColorWithPriority(palWordIdx2);
+                final int palWordIdx1 = (fb[linePos + wordOffset] >> 8) & 0xFF;
+                final int palWordIdx2 = fb[linePos + wordOffset] & 0xFF;
+                imgData[basePos + col] = palColor[palWordIdx1];
+                imgData[basePos + col + 1] = palColor[palWordIdx2];
             }
         }
-        ctx.wasBlankScreen = false;
     }
 
     @Override
@@ -522,7 +827,11 @@ public class MarsVdpImpl implements MarsVdp {
             if (mdStretchH40.length != marsData.length) {
                 mdStretchH40 = new int[marsData.length];
             }
-            S32xUtil.vidH32StretchToH40(mdVideoMode, mdData, mdStretchH40);
+            if (VECTOR_COMPOSITE) {
+                VectorComposite.vidH32StretchToH40(mdData, mdStretchH40);
+            } else {
+                S32xUtil.vidH32StretchToH40(mdVideoMode, mdData, mdStretchH40);
+            }
             mdData = mdStretchH40;
         }
         if (mdData.length == marsData.length) {
@@ -532,35 +841,34 @@ public class MarsVdpImpl implements MarsVdp {
             final boolean s32xFgBlank = prio32x && s32xRegBlank;
             final int[] fg = prio32x ? marsData : mdData;
             final int[] bg = prio32x ? mdData : marsData;
-            for (int i = 0; i < fg.length; i++) {
-                boolean throughBit = (marsData[i] & 1) > 0;
-                boolean mdBlanking = (mdData[i] & 1) > 0;
-                boolean bgBlanking = (prio32x && mdBlanking) || s32xBgBlank;
-                boolean fgBlanking = (!prio32x && mdBlanking) || s32xFgBlank;
-                fg[i] = (fgBlanking && !bgBlanking) || (throughBit && !bgBlanking) ? bg[i] : fg[i];
-            }
+            final int[] md = mdData;
+            final int w = ctx.vdpContext.videoMode.getDimension().width;
+            final int h = fg.length / w;
+            RowBands.run(h, (from, to) -> compositeRange(fg, bg, marsData, md, prio32x, s32xBgBlank, s32xFgBlank,
+                    from * w, to == h ? fg.length : to * w));
             out = fg;
         }
         return out;
     }
 
-    private void populateLineTable(final ShortBuffer b) {
-        b.position(0);
-        for (int i = 0; i < lineTableWords.length; i++) {
-            lineTableWords[i] = b.get() & 0xFFFF;
+    private static void compositeRange(int[] fg, int[] bg, int[] marsData, int[] mdData, boolean prio32x,
+                                       boolean s32xBgBlank, boolean s32xFgBlank, int from, int to) {
+        if (VECTOR_COMPOSITE) {
+            VectorComposite.compositeRange(fg, bg, marsData, mdData, prio32x, s32xBgBlank, s32xFgBlank, from, to);
+            return;
         }
+        compositeRangeScalar(fg, bg, marsData, mdData, prio32x, s32xBgBlank, s32xFgBlank, from, to);
     }
 
-    //NOTE: encodes priority as the LSB (bit) of the word
-    private int getColorWithPriority(int palWordIdx) {
-        int palValue = colorPaletteWords.get(palWordIdx) & 0xFFFF;
-        return getDirectColorWithPriority(palValue);
-    }
-
-    private int getDirectColorWithPriority(int palValue) {
-        int prio = (palValue >> 15) & 1;
-        int color = bgr5toRgb8Mapper[palValue];
-        return (color & ~1) | prio;
+    static void compositeRangeScalar(int[] fg, int[] bg, int[] marsData, int[] mdData, boolean prio32x,
+                                     boolean s32xBgBlank, boolean s32xFgBlank, int from, int to) {
+        for (int i = from; i < to; i++) {
+            boolean throughBit = (marsData[i] & 1) > 0;
+            boolean mdBlanking = (mdData[i] & 1) > 0;
+            boolean bgBlanking = (prio32x && mdBlanking) || s32xBgBlank;
+            boolean fgBlanking = (!prio32x && mdBlanking) || s32xFgBlank;
+            fg[i] = (fgBlanking && !bgBlanking) || (throughBit && !bgBlanking) ? bg[i] : fg[i];
+        }
     }
 
     public void updateVdpBitmapMode(VideoMode video) {
@@ -624,6 +932,7 @@ public class MarsVdpImpl implements MarsVdp {
         dramBanks[0].rewind().put(ctx.fb0);
         dramBanks[1].rewind().put(ctx.fb1);
         colorPalette.rewind().put(ctx.palette);
+        invalidateRenderCache();
     }
 
     @Override
@@ -0,0 +1,74 @@
+package s32x.vdp;
+
+import omegadrive.util.LogHelper;
+import org.slf4j.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Federico Berti
+ * <p>
+ * Copyright 2023
+ * <p>
+ * Splits a row loop in bands, the first bands run on a small pool and the last one on the calling thread.
+ * Callers must only touch per-row state within a band.
+ */
+public class RowBands {
+
+    private static final Logger LOG = LogHelper.getLogger(RowBands.class.getSimpleName());
+
+    public static final boolean PARALLEL =
+            Boolean.parseBoolean(System.getProperty("helios.32x.vdp.parallel", "false"));
+    public static final int BANDS = Math.max(1, Integer.parseInt(System.getProperty("helios.32x.vdp.parallel.bands",
+            String.valueOf(Math.min(4, Runtime.getRuntime().availableProcessors())))));
+
+    //bands smaller than this are not worth a handoff
+    private static final int MIN_BAND_ROWS = 16;
+
+    private static final ExecutorService pool = PARALLEL && BANDS > 1 ? createPool() : null;
+
+    public interface RowRange {
+        void render(int fromRow, int toRow);
+    }
+
+    static {
+        if (PARALLEL) {
+            LOG.info("Parallel vdp rendering, bands: {}", BANDS);
+        }
+    }
+
+    public static void run(int rows, RowRange r) {
+        final int bands = pool == null ? 1 : Math.min(BANDS, rows / MIN_BAND_ROWS);
+        if (bands <= 1) {
+            r.render(0, rows);
+            return;
+        }
+        final Future<?>[] f = new Future<?>[bands - 1];
+        final int bandRows = (rows + bands - 1) / bands;
+        for (int i = 0; i < bands - 1; i++) {
+            final int from = i * bandRows, to = Math.min(rows, from + bandRows);
+            f[i] = pool.submit(() -> r.render(from, to));
+        }
+        r.render((bands - 1) * bandRows, rows);
+        try {
+            for (Future<?> future : f) {
+                future.get();
+            }
+        } catch (Exception e) {
+            LOG.error("Band render error", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static ExecutorService createPool() {
+        final AtomicInteger cnt = new AtomicInteger();
+        return Executors.newFixedThreadPool(BANDS - 1, run -> {
+            Thread t = new Thread(run, "vdpBand-" + cnt.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
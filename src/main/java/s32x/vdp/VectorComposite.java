@@ -0,0 +1,105 @@
+package s32x.vdp;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Federico Berti
+ * <p>
+ * Copyright 2023
+ * <p>
+ * Vector API versions of the composite and H32 -> H40 stretch loops, needs --add-modules jdk.incubator.vector.
+ * Compiled on its own against the module, see compileVectorJava in build.gradle.
+ * Only touch this class when {@link MarsVdpImpl#VECTOR_COMPOSITE} is set, loading it without the module fails.
+ */
+class VectorComposite {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    //the stretch repeats every 5 dest pixels, one shuffle per phase of the chunk start
+    private static final VectorShuffle<Integer>[] stretchShuffles = createStretchShuffles();
+
+    /**
+     * Same as MarsVdpImpl#compositeRange
+     */
+    static void compositeRange(int[] fg, int[] bg, int[] marsData, int[] mdData, boolean prio32x,
+                               boolean s32xBgBlank, boolean s32xFgBlank, int from, int to) {
+        if (s32xBgBlank) {
+            //bg always blanking, fg untouched
+            return;
+        }
+        final VectorMask<Integer> fgBlankAll = SPECIES.maskAll(s32xFgBlank);
+        final int upper = from + SPECIES.loopBound(to - from);
+        int i = from;
+        for (; i < upper; i += LANES) {
+            IntVector mars = IntVector.fromArray(SPECIES, marsData, i);
+            IntVector md = IntVector.fromArray(SPECIES, mdData, i);
+            VectorMask<Integer> throughBit = mars.and(1).compare(VectorOperators.NE, 0);
+            VectorMask<Integer> mdBlanking = md.and(1).compare(VectorOperators.NE, 0);
+            VectorMask<Integer> useBg;
+            if (prio32x) {
+                //bg is md: blanking when mdBlanking, fg is 32x
+                useBg = throughBit.or(fgBlankAll).andNot(mdBlanking);
+            } else {
+                //bg is 32x and not blanking, fg is md
+                useBg = throughBit.or(mdBlanking);
+            }
+            if (useBg.anyTrue()) {
+                IntVector.fromArray(SPECIES, fg, i).blend(IntVector.fromArray(SPECIES, bg, i), useBg).
+                        intoArray(fg, i);
+            }
+        }
+        for (; i < to; i++) {
+            boolean throughBit = (marsData[i] & 1) > 0;
+            boolean mdBlanking = (mdData[i] & 1) > 0;
+            boolean bgBlanking = prio32x && mdBlanking;
+            boolean fgBlanking = (!prio32x && mdBlanking) || s32xFgBlank;
+            fg[i] = (fgBlanking || throughBit) && !bgBlanking ? bg[i] : fg[i];
+        }
+    }
+
+    /**
+     * Same as S32xUtil#vidH32StretchToH40, every 4 src pixels become 5 with the last one repeated.
+     * Rows are contiguous in both arrays (256 = 4 * 64, 320 = 5 * 64), so the mapping holds across the whole frame.
+     */
+    static void vidH32StretchToH40(int[] src, int[] dest) {
+        final int len = dest.length;
+        int k = 0;
+        for (; k + LANES <= len; k += LANES) {
+            int s0 = stretchSrcIndex(k);
+            if (s0 + LANES > src.length) {
+                break;
+            }
+            IntVector.fromArray(SPECIES, src, s0).rearrange(stretchShuffles[k % 5]).intoArray(dest, k);
+        }
+        for (; k < len; k++) {
+            dest[k] = src[stretchSrcIndex(k)];
+        }
+    }
+
+    private static int stretchSrcIndex(int destIndex) {
+        return (destIndex / 5) * 4 + Math.min(destIndex % 5, 3);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static VectorShuffle<Integer>[] createStretchShuffles() {
+        VectorShuffle<Integer>[] s = new VectorShuffle[5];
+        int[] idx = new int[LANES];
+        for (int phase = 0; phase < 5; phase++) {
+            int s0 = stretchSrcIndex(phase);
+            for (int t = 0; t < LANES; t++) {
+                idx[t] = stretchSrcIndex(phase + t) - s0;
+            }
+            s[phase] = VectorShuffle.fromArray(SPECIES, idx, 0);
+        }
+        return s;
+    }
+
+    static String getInfo() {
+        return SPECIES.toString();
+    }
+}
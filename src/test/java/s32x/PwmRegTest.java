@@ -5,6 +5,8 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import s32x.dict.S32xDict.RegSpecS32x;
+import s32x.pwm.Pwm;
+import s32x.sh2.device.IntControl;
 import s32x.util.MarsLauncherHelper;
 import s32x.util.S32xUtil;
 import s32x.util.S32xUtil.CpuDeviceAccess;
@@ -16,6 +18,8 @@ import static s32x.dict.S32xDict.M68K_START_32X_SYSREG;
 import static s32x.dict.S32xDict.RegSpecS32x.PWM_CTRL;
 import static s32x.dict.S32xDict.RegSpecS32x.PWM_CYCLE;
 import static s32x.dict.S32xDict.START_32X_SYSREG;
+import static s32x.pwm.Pwm.CYCLE_LIMIT;
+import static s32x.sh2.device.IntControl.Sh2Interrupt.PWM_6;
 import static s32x.util.S32xUtil.CpuDeviceAccess.*;
 
 /**
@@ -70,6 +74,41 @@ public class PwmRegTest {
         testPwmMasking(slaveCtx);
     }
 
+    @Test
+    public void testPwmStep() {
+        IntControl mInt = lc.mDevCtx.intC;
+        mInt.setIntsMasked(1); //pwm only
+        //interrupt every 2 samples, left channel on
+        writeBus(lc, MASTER, SH2_PWM_CTRL_REG, 0x201, Size.WORD);
+        writeBus(lc, MASTER, START_32X_SYSREG + PWM_CYCLE.regSpec.fullAddr, CYCLE_LIMIT + 1, Size.WORD);
+        Pwm pwm = lc.pwm;
+        Assertions.assertEquals(CYCLE_LIMIT, pwm.getCyclesToNextEvent());
+
+        pwm.step(3);
+        Assertions.assertEquals(CYCLE_LIMIT - 3, pwm.getCyclesToNextEvent());
+        pwm.step(2 * CYCLE_LIMIT - 4);
+        Assertions.assertEquals(0, mInt.getInterruptLevel());
+        pwm.step(1);
+        Assertions.assertEquals(PWM_6.ordinal(), mInt.getInterruptLevel());
+        Assertions.assertEquals(CYCLE_LIMIT, pwm.getCyclesToNextEvent());
+        mInt.clearInterrupt(PWM_6);
+
+        pwm.step(CYCLE_LIMIT + 7);
+        Assertions.assertEquals(0, mInt.getInterruptLevel());
+        pwm.step(CYCLE_LIMIT - 7);
+        Assertions.assertEquals(PWM_6.ordinal(), mInt.getInterruptLevel());
+        mInt.clearInterrupt(PWM_6);
+
+        //crossing several sample boundaries in one step
+        pwm.step(5 * CYCLE_LIMIT + 7);
+        Assertions.assertEquals(PWM_6.ordinal(), mInt.getInterruptLevel());
+        Assertions.assertEquals(CYCLE_LIMIT - 7, pwm.getCyclesToNextEvent());
+
+        //pwm off
+        writeBus(lc, MASTER, SH2_PWM_CTRL_REG, 0, Size.WORD);
+        Assertions.assertEquals(Integer.MAX_VALUE, pwm.getCyclesToNextEvent());
+    }
+
     private void testPwmMasking(PwmRegTestCtx ctx) {
         int andMask = ctx.andMask;
         int orMask = ctx.orMask;
@@ -0,0 +1,65 @@
+package s32x.sh2;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import s32x.sh2.Sh2Helper.Sh2PcInfoWrapper;
+
+import java.util.Arrays;
+
+import static s32x.dict.S32xDict.*;
+import static s32x.sh2.Sh2Helper.SH2_NOT_VISITED;
+import static s32x.util.S32xUtil.CpuDeviceAccess.MASTER;
+import static s32x.util.S32xUtil.CpuDeviceAccess.SLAVE;
+
+/**
+ * Federico Berti
+ * <p>
+ * Copyright 2023
+ */
+public class Sh2HelperTest {
+
+    @BeforeEach
+    public void before() {
+        Sh2Helper.clear();
+    }
+
+    @Test
+    public void testGetOrCreate() {
+        int pc = SH2_START_ROM + 0x1234;
+        Assertions.assertSame(SH2_NOT_VISITED, Sh2Helper.get(pc, MASTER));
+        Sh2PcInfoWrapper piw = Sh2Helper.getOrCreate(pc, MASTER);
+        Assertions.assertNotSame(SH2_NOT_VISITED, piw);
+        Assertions.assertSame(piw, Sh2Helper.get(pc, MASTER));
+        Assertions.assertSame(piw, Sh2Helper.getOrDefault(pc, MASTER));
+        Assertions.assertSame(piw, Sh2Helper.getOrCreate(pc, MASTER));
+
+        //same page
+        Assertions.assertSame(SH2_NOT_VISITED, Sh2Helper.get(pc, SLAVE));
+        Assertions.assertSame(SH2_NOT_VISITED, Sh2Helper.get(pc + 2, MASTER));
+        Sh2PcInfoWrapper piwSlave = Sh2Helper.getOrCreate(pc, SLAVE);
+        Assertions.assertNotSame(piw, piwSlave);
+        Assertions.assertSame(piwSlave, Sh2Helper.get(pc, SLAVE));
+
+        //not a pc area
+        Assertions.assertSame(SH2_NOT_VISITED, Sh2Helper.getOrDefault(0x1000_0000, MASTER));
+    }
+
+    @Test
+    public void testSparse() {
+        Assertions.assertEquals(0, countPages());
+        Sh2Helper.getOrCreate(SH2_START_SDRAM, MASTER);
+        Sh2Helper.getOrCreate(SH2_START_SDRAM + 2, SLAVE);
+        Sh2Helper.getOrCreate(SH2_START_ROM + 0x10_0000, MASTER);
+        Assertions.assertEquals(2, countPages());
+        Sh2Helper.clear();
+        Assertions.assertEquals(0, countPages());
+        Assertions.assertSame(SH2_NOT_VISITED, Sh2Helper.get(SH2_START_SDRAM, MASTER));
+    }
+
+    //pages with at least one visited pc
+    private static long countPages() {
+        return Arrays.stream(Sh2Helper.getPcInfoWrapper()).flatMap(Arrays::stream).distinct().
+                filter(p -> Arrays.stream(p).anyMatch(piw -> piw != SH2_NOT_VISITED)).count();
+    }
+}
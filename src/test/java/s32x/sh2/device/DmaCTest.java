@@ -9,13 +9,24 @@ import org.slf4j.Logger;
 import s32x.DmaFifo68k;
 import s32x.MarsRegTestUtil;
 import s32x.S32XMMREG;
+import s32x.bus.Sh2Bus;
+import s32x.sh2.Sh2;
+import s32x.sh2.Sh2Helper;
 import s32x.sh2.device.DmaHelper.DmaChannelSetup;
+import s32x.sh2.drc.Sh2Block;
+import s32x.sh2.prefetch.Sh2CodePages;
+import s32x.util.MarsLauncherHelper;
 import s32x.util.Md32xRuntimeData;
 import s32x.util.S32xUtil;
 
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static s32x.DmaFifo68k.SH2_FIFO_FULL_BIT;
+import static s32x.dict.S32xDict.DRAM_MASK;
+import static s32x.dict.S32xDict.SH2_CACHE_THROUGH_OFFSET;
+import static s32x.dict.S32xDict.START_DRAM;
+import static s32x.dict.S32xDict.START_OVER_IMAGE;
 import static s32x.dict.S32xDict.RegSpecS32x.*;
 import static s32x.dict.Sh2Dict.RegSpecSh2.*;
 import static s32x.util.S32xUtil.CpuDeviceAccess.*;
@@ -29,8 +40,11 @@ import static s32x.util.S32xUtil.CpuDeviceAccess.*;
 public class DmaCTest {
 
     private static final Logger LOG = LogHelper.getLogger(DmaCTest.class.getSimpleName());
+    private static final Sh2.Sh2Config configDrcEn = new Sh2.Sh2Config(true, true, false, false);
 
+    private MarsLauncherHelper.Sh2LaunchContext lc;
     private S32XMMREG s32XMMREG;
+    private Sh2Bus memory;
     private DmaC masterDmac, slaveDmac;
     private DmaFifo68k dmaFifo68k;
 
@@ -38,7 +52,9 @@ public class DmaCTest {
 
     @BeforeEach
     public void beforeEach() {
-        s32XMMREG = MarsRegTestUtil.createTestInstance().s32XMMREG;
+        lc = MarsRegTestUtil.createTestInstance();
+        s32XMMREG = lc.s32XMMREG;
+        memory = lc.memory;
         masterDmac = s32XMMREG.dmaFifoControl.getDmac()[MASTER.ordinal()];
         slaveDmac = s32XMMREG.dmaFifoControl.getDmac()[SLAVE.ordinal()];
         dmaFifo68k = s32XMMREG.dmaFifoControl;
@@ -95,6 +111,142 @@ public class DmaCTest {
         testAllChannelsAutoReqDmaInternal(baseLen * 3, baseLen, baseLen * 6, baseLen * 2);
     }
 
+    //master steps one transfer at a time, slave runs the same transfer in one multi-step
+    @Test
+    public void testAutoReqMultiStep() {
+        testAutoReqMultiStepInternal(0x40, 2);
+        beforeEach();
+        testAutoReqMultiStepInternal(0x33, 0);
+    }
+
+    private void testAutoReqMultiStepInternal(int len, int srcDelta) {
+        int mSar = 0x600_A000, mDar = 0x600_C002, sSar = 0x600_B000, sDar = 0x600_D002;
+        Random r = new Random(len);
+        for (int i = 0; i < len; i++) {
+            int val = r.nextInt(0x10000);
+            memory.write(mSar + (i << 1), val, Size.WORD);
+            memory.write(sSar + (i << 1), val, Size.WORD);
+        }
+        DmaChannelSetup mc = masterDmac.getDmaChannelSetup()[0];
+        DmaChannelSetup sc = slaveDmac.getDmaChannelSetup()[0];
+        setupDmaAndStartChannel(mc, masterDmac, len, mSar, mDar, false);
+        mc.srcDelta = srcDelta;
+        masterDmac.write(DMA_DMAOR, 0x4E1, Size.LONG);
+        setupDmaAndStartChannel(sc, slaveDmac, len, sSar, sDar, false);
+        sc.srcDelta = srcDelta;
+        slaveDmac.write(DMA_DMAOR, 0x4E1, Size.LONG);
+
+        //the first step runs on its own
+        Assertions.assertEquals(1, slaveDmac.getCyclesToNextEvent());
+        for (int i = 0; i < len - 1; i++) {
+            dmaStepOne(MASTER, masterDmac, false, mc.channel);
+        }
+        Md32xRuntimeData.setAccessTypeExt(SLAVE);
+        slaveDmac.step((len - 1) * 3);
+        Assertions.assertEquals(1, getDmaLen(masterDmac, 0));
+        Assertions.assertEquals(1, getDmaLen(slaveDmac, 0));
+        Assertions.assertEquals(masterDmac.read(DMA_SAR0, Size.LONG) - mSar, slaveDmac.read(DMA_SAR0, Size.LONG) - sSar);
+        Assertions.assertEquals(masterDmac.read(DMA_DAR0, Size.LONG) - mDar, slaveDmac.read(DMA_DAR0, Size.LONG) - sDar);
+        Assertions.assertTrue(sc.dmaInProgress);
+        Assertions.assertEquals(1, slaveDmac.getCyclesToNextEvent());
+
+        dmaStepOne(MASTER, masterDmac, false, mc.channel);
+        dmaStepOne(SLAVE, slaveDmac, false, sc.channel);
+        Assertions.assertFalse(mc.dmaInProgress);
+        Assertions.assertFalse(sc.dmaInProgress);
+        for (int i = 0; i < len; i++) {
+            Assertions.assertEquals(memory.read(mDar + (i << 1), Size.WORD),
+                    memory.read(sDar + (i << 1), Size.WORD), "" + i);
+        }
+    }
+
+    //the data reaches the frame buffer on the first step, TE on the last one
+    @Test
+    public void testAutoReqBulkFrameBuffer() {
+        testAutoReqBulkFrameBufferInternal(START_DRAM + 0x200);
+        beforeEach();
+        //zero bytes are not written to the overwrite image
+        testAutoReqBulkFrameBufferInternal(START_OVER_IMAGE + 0x200);
+    }
+
+    private void testAutoReqBulkFrameBufferInternal(int dar) {
+        int len = 0x100, sar = 0x600_A000;
+        boolean over = dar >= START_OVER_IMAGE;
+        MarsRegTestUtil.setFmAccess(lc, 1);
+        Md32xRuntimeData.setAccessTypeExt(MASTER);
+        Random r = new Random(len);
+        int[] exp = new int[len];
+        for (int i = 0; i < len; i++) {
+            int val = r.nextInt(0x10000) & (i % 3 == 0 ? 0xFF : (i % 3 == 1 ? 0xFF00 : 0xFFFF));
+            memory.write(sar + (i << 1), val, Size.WORD);
+            memory.write(START_DRAM + (dar & DRAM_MASK) + (i << 1), 0xABCD, Size.WORD);
+            exp[i] = over ? ((val & 0xFF00) == 0 ? 0xAB00 : 0) | (val & 0xFF00) | ((val & 0xFF) == 0 ? 0xCD : val & 0xFF) : val;
+        }
+        DmaChannelSetup c = masterDmac.getDmaChannelSetup()[0];
+        setupDmaAndStartChannel(c, masterDmac, len, sar, dar, false);
+        masterDmac.write(DMA_DMAOR, 0x4E1, Size.LONG);
+        //the copy runs on its own step, the count down up to the last step
+        Assertions.assertEquals(1, masterDmac.getCyclesToNextEvent());
+
+        Md32xRuntimeData.setAccessTypeExt(MASTER);
+        masterDmac.step(3);
+        Assertions.assertEquals((len - 1) * 3 - 2, masterDmac.getCyclesToNextEvent());
+        masterDmac.step((len - 2) * 3);
+        Assertions.assertTrue(c.dmaInProgress);
+        Assertions.assertEquals(1, getDmaLen(masterDmac, 0));
+        Assertions.assertEquals(1, masterDmac.getCyclesToNextEvent());
+        for (int i = 0; i < len; i++) {
+            Assertions.assertEquals(exp[i], memory.read(dar + (i << 1), Size.WORD), "" + i);
+        }
+        dmaStepOne(MASTER, masterDmac, false, c.channel);
+        Assertions.assertFalse(c.dmaInProgress);
+        Assertions.assertEquals(0, getDmaLen(masterDmac, 0));
+        Assertions.assertEquals(dar + (len << 1), masterDmac.read(DMA_DAR0, Size.LONG));
+        Assertions.assertEquals(Integer.MAX_VALUE, masterDmac.getCyclesToNextEvent());
+    }
+
+    //the bulk copy reports the whole destination range, a block in the middle of it is invalidated
+    @Test
+    public void testAutoReqBulkInvalidateBlock() {
+        Sh2.Sh2Config prev = Sh2.Sh2Config.get();
+        Sh2.Sh2Config.reset(configDrcEn);
+        try {
+            beforeEach();
+            testAutoReqBulkInvalidateBlockInternal();
+        } finally {
+            Sh2.Sh2Config.reset(prev);
+        }
+    }
+
+    private void testAutoReqBulkInvalidateBlockInternal() {
+        int len = 0x800, sar = 0x600_2000, dar = 0x600_4000;
+        Sh2Helper.clear();
+        Md32xRuntimeData.setAccessTypeExt(MASTER);
+        Random r = new Random(len);
+        for (int i = 0; i < len; i++) {
+            memory.write(sar + (i << 1), r.nextInt(0x10000) | 1, Size.WORD);
+        }
+        //the dma writes via the cache-through area
+        Sh2Block inside = addBlock(SH2_CACHE_THROUGH_OFFSET | (dar + len));
+        Sh2Block outside = addBlock(SH2_CACHE_THROUGH_OFFSET | (dar + (len << 1) + 0x40));
+        DmaChannelSetup c = masterDmac.getDmaChannelSetup()[0];
+        setupDmaAndStartChannel(c, masterDmac, len, sar, dar, false);
+        masterDmac.write(DMA_DMAOR, 0x4E1, Size.LONG);
+        dmaStepOne(MASTER, masterDmac, false, c.channel);
+        Assertions.assertFalse(inside.isValid());
+        Assertions.assertSame(Sh2Block.INVALID_BLOCK, Sh2Helper.get(SH2_CACHE_THROUGH_OFFSET | (dar + len), MASTER).block);
+        Assertions.assertTrue(outside.isValid());
+    }
+
+    private static Sh2Block addBlock(int pc) {
+        Sh2Block b = new Sh2Block(pc, MASTER);
+        b.prefetchWords = new int[4];
+        b.prefetchLenWords = b.prefetchWords.length;
+        Sh2Helper.getOrCreate(pc, MASTER).setBlock(b);
+        Sh2CodePages.addBlock(b);
+        return b;
+    }
+
     private void testAllChannelsAutoReqDmaInternal(int m0Len, int m1Len, int s0Len, int s1Len) {
         DmaChannelSetup[] mc = masterDmac.getDmaChannelSetup();
         DmaChannelSetup[] sc = slaveDmac.getDmaChannelSetup();
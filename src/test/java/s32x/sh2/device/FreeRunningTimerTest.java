@@ -0,0 +1,89 @@
+package s32x.sh2.device;
+
+import omegadrive.util.Size;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import s32x.MarsRegTestUtil;
+import s32x.Sh2MMREG;
+import s32x.util.MarsLauncherHelper;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static s32x.dict.Sh2Dict.RegSpecSh2.*;
+import static s32x.sh2.device.FreeRunningTimer.*;
+import static s32x.util.S32xUtil.CpuDeviceAccess.MASTER;
+
+/**
+ * Federico Berti
+ * <p>
+ * Copyright 2023
+ */
+public class FreeRunningTimerTest {
+
+    private MarsLauncherHelper.Sh2LaunchContext lc;
+
+    @BeforeEach
+    public void before() {
+        lc = MarsRegTestUtil.createTestInstance();
+    }
+
+    //stepping one cycle at a time or in one go
+    @Test
+    public void testStep() {
+        Random r = new Random(1);
+        for (int clockSel = 0; clockSel < 4; clockSel++) {
+            for (int cclra = 0; cclra < 2; cclra++) {
+                FreeRunningTimer f1 = createTimer(), f2 = createTimer();
+                setup(f1, clockSel, cclra);
+                setup(f2, clockSel, cclra);
+                for (int i = 0; i < 200; i++) {
+                    int cycles = r.nextInt(0x100);
+                    for (int j = 0; j < cycles; j++) {
+                        f1.step(1);
+                    }
+                    f2.step(cycles);
+                    Assertions.assertEquals(f1.read(FRT_FRCH, Size.WORD), f2.read(FRT_FRCH, Size.WORD));
+                    Assertions.assertEquals(f1.read(FRT_FTCSR, Size.BYTE), f2.read(FRT_FTCSR, Size.BYTE));
+                    Assertions.assertEquals(f1.getCyclesToNextEvent(), f2.getCyclesToNextEvent());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testNextEvent() {
+        FreeRunningTimer f = createTimer();
+        //clock div 8, ocra = ocrb = 0xFFFF
+        Assertions.assertEquals(0xFFFF * 8, f.getCyclesToNextEvent());
+        f.write(FRT_FRCH, 0xFFF0, Size.WORD);
+        int cycles = f.getCyclesToNextEvent();
+        Assertions.assertEquals(15 * 8, cycles);
+        f.step(cycles - 1);
+        Assertions.assertEquals(0, f.read(FRT_FTCSR, Size.BYTE));
+        f.step(1);
+        Assertions.assertEquals(FTCSR_OCFA_MASK | FTCSR_OCFB_MASK, f.read(FRT_FTCSR, Size.BYTE));
+        Assertions.assertEquals(0xFFFF, f.read(FRT_FRCH, Size.WORD));
+        //overflow
+        Assertions.assertEquals(8, f.getCyclesToNextEvent());
+        f.step(8);
+        Assertions.assertEquals(FTCSR_OVF_MASK, f.read(FRT_FTCSR, Size.BYTE) & FTCSR_OVF_MASK);
+        Assertions.assertEquals(0, f.read(FRT_FRCH, Size.WORD));
+    }
+
+    //ocra = 0x300, ocrb = 0x100, optionally clear on compare match A
+    private static void setup(FreeRunningTimer f, int clockSel, int cclra) {
+        f.write(FRT_TCR, clockSel, Size.BYTE);
+        f.write(FRT_TOCR, 0, Size.BYTE);
+        f.write(FRT_OCRAB_H, 0x300, Size.WORD);
+        f.write(FRT_TOCR, TOCR_OCRS_MASK, Size.BYTE);
+        f.write(FRT_OCRAB_H, 0x100, Size.WORD);
+        f.write(FRT_FTCSR, cclra, Size.BYTE);
+        f.write(FRT_FRCH, 0xF0, Size.WORD);
+    }
+
+    private FreeRunningTimer createTimer() {
+        return new FreeRunningTimer(MASTER, lc.mDevCtx.intC, ByteBuffer.allocate(Sh2MMREG.SH2_REG_SIZE));
+    }
+}
@@ -0,0 +1,74 @@
+package s32x.sh2.device;
+
+import omegadrive.util.Size;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import s32x.MarsRegTestUtil;
+import s32x.Sh2MMREG;
+import s32x.util.MarsLauncherHelper;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static s32x.dict.Sh2Dict.RegSpecSh2.WDT_WTCNT;
+import static s32x.dict.Sh2Dict.RegSpecSh2.WDT_WTCSR;
+import static s32x.util.S32xUtil.CpuDeviceAccess.MASTER;
+
+/**
+ * Federico Berti
+ * <p>
+ * Copyright 2023
+ */
+public class WatchdogTimerTest {
+
+    private MarsLauncherHelper.Sh2LaunchContext lc;
+
+    @BeforeEach
+    public void before() {
+        lc = MarsRegTestUtil.createTestInstance();
+    }
+
+    //stepping one cycle at a time or in one go
+    @Test
+    public void testStep() {
+        Random r = new Random(1);
+        for (int clockSel = 0; clockSel < 8; clockSel++) {
+            WatchdogTimer w1 = createTimer(), w2 = createTimer();
+            //timer mode, enabled
+            w1.write(WDT_WTCSR, 0xA520 | clockSel, Size.WORD);
+            w2.write(WDT_WTCSR, 0xA520 | clockSel, Size.WORD);
+            for (int i = 0; i < 200; i++) {
+                int cycles = r.nextInt(1 << (clockSel + 4));
+                for (int j = 0; j < cycles; j++) {
+                    w1.step(1);
+                }
+                w2.step(cycles);
+                Assertions.assertEquals(w1.read(WDT_WTCNT, Size.BYTE), w2.read(WDT_WTCNT, Size.BYTE));
+                Assertions.assertEquals(w1.read(WDT_WTCSR, Size.BYTE), w2.read(WDT_WTCSR, Size.BYTE));
+                Assertions.assertEquals(w1.getCyclesToNextEvent(), w2.getCyclesToNextEvent());
+            }
+        }
+    }
+
+    @Test
+    public void testNextEvent() {
+        WatchdogTimer w = createTimer();
+        Assertions.assertEquals(Integer.MAX_VALUE, w.getCyclesToNextEvent());
+        //clock div 64
+        w.write(WDT_WTCSR, 0xA521, Size.WORD);
+        w.write(WDT_WTCSR, 0x5AF0, Size.WORD); //wtcnt
+        int cycles = w.getCyclesToNextEvent();
+        Assertions.assertEquals(16 * 64, cycles);
+        w.step(cycles - 1);
+        Assertions.assertEquals(0, w.read(WDT_WTCSR, Size.BYTE) & 0x80);
+        w.step(1);
+        Assertions.assertEquals(0x80, w.read(WDT_WTCSR, Size.BYTE) & 0x80);
+        Assertions.assertEquals(0, w.read(WDT_WTCNT, Size.BYTE));
+        Assertions.assertEquals(256 * 64, w.getCyclesToNextEvent());
+    }
+
+    private WatchdogTimer createTimer() {
+        return new WatchdogTimer(MASTER, lc.mDevCtx.intC, ByteBuffer.allocate(Sh2MMREG.SH2_REG_SIZE));
+    }
+}
@@ -0,0 +1,90 @@
+package s32x.sh2.drc;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Objects;
+
+import static s32x.dict.S32xDict.SH2_START_SDRAM;
+import static s32x.sh2.Sh2Disassembler.NOP;
+import static s32x.util.S32xUtil.CpuDeviceAccess.MASTER;
+
+/**
+ * Federico Berti
+ * <p>
+ * Copyright 2023
+ */
+public class Ow2DrcClassCacheTest {
+
+    private static final byte[] classBytes = {(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 1, 2, 3, 4};
+
+    @Test
+    public void testKey() {
+        Sh2Block b1 = createBlock(SH2_START_SDRAM, NOP, 0x7101);
+        Sh2Block b2 = createBlock(SH2_START_SDRAM, NOP, 0x7102);
+        byte[] k1 = Ow2DrcClassCache.createKey("M", b1, 0);
+        Assertions.assertArrayEquals(k1, Ow2DrcClassCache.createKey("M", createBlock(SH2_START_SDRAM, NOP, 0x7101), 0));
+        Assertions.assertFalse(Arrays.equals(k1, Ow2DrcClassCache.createKey("M", b2, 0)));
+        Assertions.assertFalse(Arrays.equals(k1, Ow2DrcClassCache.createKey("S", b1, 0)));
+        Assertions.assertFalse(Arrays.equals(k1, Ow2DrcClassCache.createKey("M", b1, 1)));
+        Assertions.assertEquals(Ow2DrcClassCache.className("M", b1.prefetchPc, k1),
+                Ow2DrcClassCache.className("M", b1.prefetchPc, k1.clone()));
+    }
+
+    @Test
+    public void testEncodeDecode() {
+        byte[] key = Ow2DrcClassCache.createKey("M", createBlock(SH2_START_SDRAM, NOP), 0);
+        byte[] data = Ow2DrcClassCache.encode(key, classBytes);
+        Assertions.assertArrayEquals(classBytes, Ow2DrcClassCache.decode(data, key));
+
+        byte[] otherKey = Ow2DrcClassCache.createKey("M", createBlock(SH2_START_SDRAM + 2, NOP), 0);
+        Assertions.assertNull(Ow2DrcClassCache.decode(data, otherKey));
+
+        byte[] corrupt = data.clone();
+        corrupt[corrupt.length - 10] ^= 1;
+        Assertions.assertNull(Ow2DrcClassCache.decode(corrupt, key));
+        Assertions.assertNull(Ow2DrcClassCache.decode(Arrays.copyOf(data, 10), key));
+    }
+
+    @Test
+    public void testReloadAndEvict() throws Exception {
+        Path folder = Files.createTempDirectory("drcCache");
+        try {
+            Ow2DrcClassCache cache = new Ow2DrcClassCache(folder, 1024);
+            byte[][] keys = new byte[40][];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = Ow2DrcClassCache.createKey("M", createBlock(SH2_START_SDRAM + (i << 1), NOP), 0);
+                cache.write("c" + i, Ow2DrcClassCache.encode(keys[i], classBytes));
+                Assertions.assertTrue(new File(folder.toFile(), "c" + i + ".drc").setLastModified(i * 1000L));
+            }
+            //next run
+            cache = new Ow2DrcClassCache(folder, 1024);
+            Assertions.assertArrayEquals(classBytes, cache.load("c0", keys[0]));
+            Assertions.assertNull(cache.load("missing", keys[0]));
+
+            long size = cache.evict();
+            Assertions.assertTrue(size <= 768);
+            Assertions.assertEquals(size, Arrays.stream(Objects.requireNonNull(folder.toFile().listFiles())).
+                    mapToLong(File::length).sum());
+            //c0 was used last
+            Assertions.assertTrue(new File(folder.toFile(), "c0.drc").exists());
+            Assertions.assertFalse(new File(folder.toFile(), "c2.drc").exists());
+            Assertions.assertNull(cache.load("c2", keys[2]));
+            Assertions.assertNull(cache.load("c39", keys[0]));
+        } finally {
+            Arrays.stream(Objects.requireNonNull(folder.toFile().listFiles())).forEach(File::delete);
+            Files.deleteIfExists(folder);
+        }
+    }
+
+    private static Sh2Block createBlock(int pc, int... words) {
+        Sh2Block block = new Sh2Block(pc, MASTER);
+        block.prefetchWords = words;
+        block.prefetchLenWords = words.length;
+        return block;
+    }
+}
@@ -0,0 +1,359 @@
+package s32x.sh2.drc;
+
+import omegadrive.util.Size;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import s32x.bus.Sh2Bus;
+import s32x.sh2.Sh2;
+import s32x.sh2.Sh2Context;
+import s32x.sh2.Sh2Helper;
+import s32x.sh2.Sh2MultiTestBase;
+import s32x.sh2.prefetch.Sh2Prefetch;
+import s32x.util.Md32xRuntimeData;
+import s32x.util.S32xUtil.CpuDeviceAccess;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import static org.objectweb.asm.Opcodes.*;
+import static s32x.dict.S32xDict.SH2_START_ROM;
+import static s32x.dict.S32xDict.SH2_START_SDRAM;
+import static s32x.sh2.drc.Ow2Sh2Helper.SH2CTX_CLASS_FIELD.SR;
+import static s32x.sh2.Sh2Disassembler.NOP;
+import static s32x.util.S32xUtil.CpuDeviceAccess.MASTER;
+
+/**
+ * Federico Berti
+ * <p>
+ * Copyright 2023
+ * <p>
+ * The DRC should behave the same with and without register allocation.
+ */
+public class Ow2Sh2RegAllocTest extends Sh2MultiTestBase {
+
+    private static final int pc = 0x100, pcB = 0x110;
+    private static final int memAddr = SH2_START_SDRAM | 0x1000, stackAddr = SH2_START_SDRAM | 0x2000;
+    private static final String classDesc = "s32x/sh2/drc/RegAllocTest";
+    private static final String sh2CtxDesc = Type.getInternalName(Sh2Context.class);
+
+    //2 blocks chaining into each other, the chain call is a sync point
+    public static int[] trace = {
+            0x7101, //0: ADD #1,R1
+            0x2412, //2: MOV.L R1,@R4
+            0x6242, //4: MOV.L @R4,R2
+            0x332C, //6: ADD R2,R3
+            0x2F36, //8: MOV.L R3,@-R15
+            0xA001, //A: BRA 10
+            0x7502, //C: ADD #2,R5
+            NOP,    //E
+            0x71FF, //10: ADD #-1,R1
+            0x66F6, //12: MOV.L @R15+,R6
+            0xAFF4, //14: BRA 0
+            0x371C, //16: ADD R1,R7
+    };
+
+    //T flag producers and consumers in a loop, SR lives in a local
+    public static int[] traceT = {
+            0x3010, //0: CMP/EQ R1,R0
+            0x310E, //2: ADDC R0,R1
+            0x4410, //4: DT R4
+            0x0329, //6: MOVT R3
+            0x2F36, //8: MOV.L R3,@-R15
+            0x4524, //A: ROTCL R5
+            0xAFF8, //C: BRA 0
+            0x7601, //E: ADD #1,R6
+    };
+
+    static {
+        config = configCacheEn;
+    }
+
+    @Override
+    @BeforeEach
+    public void before() {
+        super.before();
+        //blocks from the other tests live at the same pc
+        Sh2Helper.clear();
+        Sh2Bus.MemoryDataCtx mdc = lc.memory.getMemoryDataCtx();
+        ByteBuffer bios = mdc.bios[CpuDeviceAccess.MASTER.ordinal()].buffer;
+        bios.putInt(0, SH2_START_ROM | pc);
+        bios.putInt(4, SH2_START_ROM | (mdc.rom.capacity() - 4));
+    }
+
+    @Test
+    public void testRegAllocSameStateTFlag() {
+        for (int i = 0; i < traceT.length; i++) {
+            rom.putShort(pc + (i << 1), (short) traceT[i]);
+        }
+        sh2.reset(masterCtx);
+        masterCtx.registers[0] = masterCtx.registers[1] = 7;
+        masterCtx.registers[4] = 2;
+        masterCtx.registers[5] = 0x8000_0001;
+        masterCtx.registers[15] = stackAddr;
+        Sh2Helper.Sh2PcInfoWrapper wrapper = Sh2Helper.getOrCreate(SH2_START_ROM | pc, MASTER);
+        DrcUtil.loopUntilDrc(sh2, masterCtx, wrapper);
+        Sh2Block block = wrapper.block;
+        String name = classDesc.replace('/', '.');
+        Assertions.assertFalse(Arrays.equals(Ow2Sh2BlockRecompiler.createClassBinary(block, block.drcContext, name, true),
+                Ow2Sh2BlockRecompiler.createClassBinary(block, block.drcContext, name, false)));
+
+        int[] initRegs = masterCtx.registers.clone();
+        for (int sr : new int[]{masterCtx.SR & ~Sh2.flagT, masterCtx.SR | Sh2.flagT}) {
+            int[] exp = runBlock(block, false, initRegs, sr);
+            int[] act = runBlock(block, true, initRegs, sr);
+            Assertions.assertArrayEquals(exp, act);
+        }
+    }
+
+    //SR reads and writes use a local, loaded on entry and written back before a call and on exit
+    @Test
+    public void testSrLocal() {
+        MethodNode mn = visitNode(mv -> {
+            //SR |= 1
+            pushSh2Context(mv);
+            mv.visitInsn(DUP);
+            mv.visitFieldInsn(GETFIELD, sh2CtxDesc, SR.name(), "I");
+            mv.visitInsn(ICONST_1);
+            mv.visitInsn(IOR);
+            mv.visitFieldInsn(PUTFIELD, sh2CtxDesc, SR.name(), "I");
+            mv.visitMethodInsn(INVOKESTATIC, classDesc, "fallback", "()V", false);
+            //SR & 1
+            pushSh2Context(mv);
+            mv.visitFieldInsn(GETFIELD, sh2CtxDesc, SR.name(), "I");
+            mv.visitInsn(ICONST_1);
+            mv.visitInsn(IAND);
+            mv.visitInsn(POP);
+        });
+        //prologue and reload after the call
+        Assertions.assertEquals(2, countField(mn, GETFIELD, SR.name()));
+        //spill before the call and on exit
+        Assertions.assertEquals(2, countField(mn, PUTFIELD, SR.name()));
+        //the Sh2Context ref is only left behind by the write
+        Assertions.assertEquals(0, count(mn, DUP));
+        Assertions.assertEquals(2, count(mn, POP));
+    }
+
+    @Test
+    public void testRegAllocSameState() {
+        for (int i = 0; i < trace.length; i++) {
+            rom.putShort(pc + (i << 1), (short) trace[i]);
+        }
+        sh2.reset(masterCtx);
+        masterCtx.registers[4] = memAddr;
+        masterCtx.registers[15] = stackAddr;
+        Sh2Helper.Sh2PcInfoWrapper wrapper = Sh2Helper.getOrCreate(SH2_START_ROM | pc, MASTER);
+        Sh2Helper.Sh2PcInfoWrapper wrapperB = Sh2Helper.getOrCreate(SH2_START_ROM | pcB, MASTER);
+        DrcUtil.loopUntilDrc(sh2, masterCtx, wrapper);
+        DrcUtil.loopUntilDrc(sh2, masterCtx, wrapperB);
+        Sh2Block block = wrapper.block, blockB = wrapperB.block;
+        Assertions.assertSame(blockB, block.nextBlock);
+
+        //the run method differs only when the registers live in locals
+        Sh2Prefetch.Sh2DrcContext drcCtx = block.drcContext;
+        String name = classDesc.replace('/', '.');
+        Assertions.assertFalse(Arrays.equals(Ow2Sh2BlockRecompiler.createClassBinary(block, drcCtx, name, true),
+                Ow2Sh2BlockRecompiler.createClassBinary(block, drcCtx, name, false)));
+
+        int[] initRegs = masterCtx.registers.clone();
+        int initSr = masterCtx.SR;
+        int[] exp = runBlock(block, false, initRegs, initSr);
+        int[] act = runBlock(block, true, initRegs, initSr);
+        Assertions.assertArrayEquals(exp, act);
+        //chained into blockB at least once
+        Assertions.assertNotEquals(initRegs[6], act[6]);
+    }
+
+    private int[] runBlock(Sh2Block block, boolean regAlloc, int[] regs, int sr) {
+        Sh2Context ctx = masterCtx;
+        Runnable prev = block.stage2Drc;
+        block.stage2Drc = Ow2Sh2BlockRecompiler.getInstance().createDrcClass(block, block.drcContext, regAlloc);
+        System.arraycopy(regs, 0, ctx.registers, 0, regs.length);
+        ctx.SR = sr;
+        ctx.PC = block.prefetchPc;
+        ctx.PR = ctx.GBR = ctx.MACH = ctx.MACL = 0;
+        ctx.cycles = 24;
+        ctx.fetchResult.block = block;
+        ctx.fetchResult.pc = ctx.PC;
+        memory.write(memAddr, 0, Size.LONG);
+        Md32xRuntimeData.resetCpuDelayExt(MASTER, 0);
+        try {
+            block.runBlock(sh2, null);
+        } finally {
+            block.stage2Drc = prev;
+        }
+        int[] res = Arrays.copyOf(ctx.registers, regs.length + 8);
+        int i = regs.length;
+        res[i++] = ctx.PC;
+        res[i++] = ctx.SR;
+        res[i++] = ctx.PR;
+        res[i++] = ctx.MACH;
+        res[i++] = ctx.MACL;
+        res[i++] = ctx.cycles;
+        res[i++] = memory.read(memAddr, Size.LONG);
+        res[i] = memory.read(stackAddr - 4, Size.LONG);
+        return res;
+    }
+
+    @Test
+    public void testForwardJump() {
+        Assertions.assertFalse(visit(mv -> {
+            Label l = new Label();
+            pushReg(mv, 1);
+            mv.visitJumpInsn(IFEQ, l);
+            mv.visitLabel(l);
+        }));
+    }
+
+    @Test
+    public void testBackJump() {
+        Assertions.assertTrue(visit(mv -> {
+            Label l = new Label();
+            mv.visitLabel(l);
+            pushReg(mv, 1);
+            mv.visitJumpInsn(IFEQ, l);
+        }));
+    }
+
+    @Test
+    public void testSwitch() {
+        Assertions.assertTrue(visit(mv -> {
+            Label l = new Label();
+            pushReg(mv, 1);
+            mv.visitTableSwitchInsn(0, 0, l, l);
+            mv.visitLabel(l);
+        }));
+        Assertions.assertTrue(visit(mv -> {
+            Label l = new Label();
+            pushReg(mv, 1);
+            mv.visitLookupSwitchInsn(l, new int[]{0}, new Label[]{l});
+            mv.visitLabel(l);
+        }));
+    }
+
+    @Test
+    public void testRegsArrayEscapes() {
+        Assertions.assertTrue(visit(mv -> {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, classDesc, Ow2Sh2Helper.DRC_CLASS_FIELD.regs.name(), "[I");
+            mv.visitInsn(POP);
+        }));
+    }
+
+    //regs[1] = x, with x on the stack below the phantom regs[1]
+    @Test
+    public void testStackOpOnPhantom() {
+        Assertions.assertFalse(visit(mv -> {
+            pushRegRef(mv, 1);
+            mv.visitInsn(ICONST_1);
+            mv.visitInsn(IASTORE);
+        }));
+        Assertions.assertTrue(visit(mv -> {
+            mv.visitInsn(ICONST_1);
+            pushRegRef(mv, 1);
+            mv.visitInsn(DUP2_X1);
+            mv.visitInsn(POP2);
+            mv.visitInsn(IASTORE);
+        }));
+        Assertions.assertTrue(visit(mv -> {
+            pushRegRef(mv, 1);
+            mv.visitInsn(ICONST_1);
+            mv.visitInsn(DUP_X2);
+            mv.visitInsn(IASTORE);
+            mv.visitInsn(POP);
+        }));
+        Assertions.assertTrue(visit(mv -> {
+            pushRegRef(mv, 1);
+            mv.visitInsn(POP2);
+        }));
+    }
+
+    //a call followed by a return does not reload the registers
+    @Test
+    public void testSyncBeforeExit() {
+        Consumer<Ow2Sh2RegAlloc> call = mv -> {
+            //regs[2] = regs[1]
+            pushRegRef(mv, 2);
+            pushReg(mv, 1);
+            mv.visitInsn(IASTORE);
+            mv.visitMethodInsn(INVOKESTATIC, classDesc, "fallback", "()V", false);
+        };
+        MethodNode mn = visitNode(call);
+        //prologue only, spill before the call only
+        Assertions.assertEquals(2, count(mn, IALOAD));
+        Assertions.assertEquals(1, count(mn, IASTORE));
+        mn = visitNode(call.andThen(mv -> {
+            mv.visitInsn(ICONST_0);
+            mv.visitInsn(POP);
+        }));
+        Assertions.assertEquals(4, count(mn, IALOAD));
+        Assertions.assertEquals(2, count(mn, IASTORE));
+        mn = visitNode(call.andThen(mv -> {
+            Label l = new Label();
+            mv.visitInsn(ICONST_0);
+            mv.visitJumpInsn(IFEQ, l);
+            mv.visitMethodInsn(INVOKESTATIC, classDesc, "fallback", "()V", false);
+            mv.visitLabel(l);
+        }));
+        //the label is a jump target
+        Assertions.assertEquals(6, count(mn, IALOAD));
+    }
+
+    //returns true when regAlloc gives up
+    private static boolean visit(Consumer<Ow2Sh2RegAlloc> body) {
+        return createRegAlloc(body, new MethodNode(ACC_PUBLIC | ACC_FINAL, "run", "()V", null, null)).isFailed();
+    }
+
+    private static MethodNode visitNode(Consumer<Ow2Sh2RegAlloc> body) {
+        MethodNode mn = new MethodNode(ACC_PUBLIC | ACC_FINAL, "run", "()V", null, null);
+        Ow2Sh2RegAlloc regAlloc = createRegAlloc(body, mn);
+        Assertions.assertFalse(regAlloc.isFailed());
+        regAlloc.finish();
+        return mn;
+    }
+
+    private static Ow2Sh2RegAlloc createRegAlloc(Consumer<Ow2Sh2RegAlloc> body, MethodNode mn) {
+        Ow2Sh2RegAlloc regAlloc = new Ow2Sh2RegAlloc(mn, classDesc);
+        int[] regLocal = new int[16];
+        Arrays.setAll(regLocal, i -> i + 1);
+        regAlloc.setLocals(regLocal, regLocal.length + 1, regLocal.length + 2);
+        body.accept(regAlloc);
+        regAlloc.visitInsn(RETURN);
+        regAlloc.visitMaxs(0, 0);
+        return regAlloc;
+    }
+
+    private static int count(MethodNode mn, int opcode) {
+        return (int) Arrays.stream(mn.instructions.toArray()).filter(n -> n.getOpcode() == opcode).count();
+    }
+
+    private static int countField(MethodNode mn, int opcode, String name) {
+        return (int) Arrays.stream(mn.instructions.toArray()).filter(n -> n.getOpcode() == opcode &&
+                ((FieldInsnNode) n).name.equals(name)).count();
+    }
+
+    //this.sh2Context
+    private static void pushSh2Context(Ow2Sh2RegAlloc mv) {
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, classDesc, Ow2Sh2Helper.DRC_CLASS_FIELD.sh2Context.name(),
+                Type.getDescriptor(Sh2Context.class));
+    }
+
+    //this.regs[n]
+    private static void pushReg(Ow2Sh2RegAlloc mv, int n) {
+        pushRegRef(mv, n);
+        mv.visitInsn(IALOAD);
+    }
+
+    //this.regs, n
+    private static void pushRegRef(Ow2Sh2RegAlloc mv, int n) {
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, classDesc, Ow2Sh2Helper.DRC_CLASS_FIELD.regs.name(), "[I");
+        mv.visitInsn(ICONST_0 + n);
+    }
+}
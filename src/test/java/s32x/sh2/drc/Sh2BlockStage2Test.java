@@ -0,0 +1,87 @@
+package s32x.sh2.drc;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import s32x.sh2.Sh2Helper;
+import s32x.sh2.Sh2Helper.Sh2PcInfoWrapper;
+
+import static s32x.dict.S32xDict.SH2_START_SDRAM;
+import static s32x.util.S32xUtil.CpuDeviceAccess.MASTER;
+
+/**
+ * Federico Berti
+ * <p>
+ * Copyright 2023
+ * <p>
+ * Classes compiled by the drc thread are only installed if the block has not changed in the meantime.
+ */
+public class Sh2BlockStage2Test {
+
+    private static final Runnable NO_OP = () -> {
+    };
+
+    @BeforeEach
+    public void before() {
+        Sh2Helper.clear();
+    }
+
+    @Test
+    public void testInstall() {
+        Sh2Block b = createPendingBlock();
+        b.stage2Result = new Sh2Block.Stage2Result(b.getGeneration(), NO_OP);
+        b.addHit();
+        Assertions.assertSame(NO_OP, b.stage2Drc);
+        Assertions.assertFalse(b.isStage2Pending());
+        Assertions.assertNull(b.stage2Result);
+    }
+
+    @Test
+    public void testInvalidatedWhileCompiling() {
+        Sh2Block b = createPendingBlock();
+        Sh2Block snapshot = b.stage2Snapshot();
+        int generation = b.getGeneration();
+        b.invalidate();
+        //the drc thread only sees the snapshot
+        Assertions.assertEquals(SH2_START_SDRAM, snapshot.prefetchPc);
+        b.stage2Result = new Sh2Block.Stage2Result(generation, NO_OP);
+        b.setValid();
+        b.addHit();
+        Assertions.assertNull(b.stage2Drc);
+        Assertions.assertFalse(b.isStage2Pending());
+    }
+
+    @Test
+    public void testEvictedWhileCompiling() {
+        Sh2PcInfoWrapper piw = Sh2Helper.getOrCreate(SH2_START_SDRAM, MASTER);
+        Sh2Block b = createPendingBlock();
+        int generation = b.getGeneration();
+        b.invalidate();
+        piw.addToKnownBlocks(b);
+        piw.removeKnownBlock(b);
+        //the drc thread completes after the eviction
+        b.stage2Result = new Sh2Block.Stage2Result(generation, NO_OP);
+        b.addHit();
+        Assertions.assertNull(b.stage2Drc);
+        Assertions.assertNull(b.stage2Result);
+    }
+
+    @Test
+    public void testFailedCompile() {
+        Sh2Block b = createPendingBlock();
+        b.stage2Result = new Sh2Block.Stage2Result(b.getGeneration(), null);
+        b.addHit();
+        Assertions.assertNull(b.stage2Drc);
+        //can be queued again
+        Assertions.assertFalse(b.isStage2Pending());
+    }
+
+    private static Sh2Block createPendingBlock() {
+        Sh2Block b = new Sh2Block(SH2_START_SDRAM, MASTER);
+        b.prefetchWords = new int[]{1};
+        b.prefetchLenWords = 1;
+        b.hashCodeWords = 1;
+        b.blockFlags |= Sh2Block.STAGE2_PENDING_FLAG;
+        return b;
+    }
+}
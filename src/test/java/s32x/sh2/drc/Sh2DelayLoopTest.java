@@ -0,0 +1,95 @@
+package s32x.sh2.drc;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+import s32x.bus.Sh2Bus;
+import s32x.sh2.Sh2;
+import s32x.sh2.Sh2Helper;
+import s32x.sh2.Sh2MultiTestBase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import static s32x.dict.S32xDict.SH2_START_ROM;
+import static s32x.sh2.Sh2Disassembler.NOP;
+import static s32x.util.S32xUtil.CpuDeviceAccess.MASTER;
+
+/**
+ * Federico Berti
+ * <p>
+ * Copyright 2023
+ */
+public class Sh2DelayLoopTest extends Sh2MultiTestBase {
+
+    private static final int pc = 0x100;
+    private static final int DT_R1 = 0x4110, MOV_R2_R2 = 0x6223, BF_BACK4 = 0x8BFC, BFS_BACK4 = 0x8FFC,
+            ADD_1_R3 = 0x7301, BRA_BACK2 = 0xAFFD;
+
+    //dt, nop, bf -> delay loop, then a loop incrementing R3
+    private static final int[] delayLoop = {DT_R1, NOP, BF_BACK4, ADD_1_R3, BRA_BACK2, NOP};
+    //same cycles, not a delay loop
+    private static final int[] plainLoop = {DT_R1, MOV_R2_R2, BF_BACK4, ADD_1_R3, BRA_BACK2, NOP};
+
+    static {
+        config = configCacheEn;
+    }
+
+    protected static Stream<Sh2.Sh2Config> fileProvider() {
+        return Arrays.stream(configList).filter(c -> c.prefetchEn && c.drcEn);
+    }
+
+    @Override
+    @BeforeEach
+    public void before() {
+        super.before();
+        Sh2Bus.MemoryDataCtx mdc = lc.memory.getMemoryDataCtx();
+        ByteBuffer bios = mdc.bios[MASTER.ordinal()].buffer;
+        bios.putInt(0, SH2_START_ROM | pc);
+        bios.putInt(4, SH2_START_ROM | (mdc.rom.capacity() - 4));
+    }
+
+    @ParameterizedTest
+    @MethodSource("fileProvider")
+    public void testDelayLoop(Sh2.Sh2Config c) {
+        Assertions.assertEquals(1, Ow2DrcOptimizer.detectDelayLoop(createBlock(delayLoop, 3)));
+        Assertions.assertEquals(1, Ow2DrcOptimizer.detectDelayLoop(createBlock(new int[]{DT_R1, NOP, BFS_BACK4, NOP}, 4)));
+        Assertions.assertEquals(-1, Ow2DrcOptimizer.detectDelayLoop(createBlock(plainLoop, 3)));
+        //not looping to the start of the block
+        Assertions.assertEquals(-1, Ow2DrcOptimizer.detectDelayLoop(createBlock(new int[]{NOP, DT_R1, 0x8BFD}, 3)));
+
+        for (int count : new int[]{1, 2, 40, 1000}) {
+            long[] exp = runLoop(c, plainLoop, count);
+            long[] res = runLoop(c, delayLoop, count);
+            Assertions.assertArrayEquals(exp, res, "count: " + count);
+        }
+        //the delay loop block has been detected
+        Assertions.assertEquals(1, Sh2Helper.get(SH2_START_ROM | pc, MASTER).block.delayLoopReg);
+    }
+
+    //runs until the dt register reaches zero, returns the cycles used and the final state
+    private long[] runLoop(Sh2.Sh2Config c, int[] trace, int count) {
+        resetCacheConfig(c);
+        for (int i = 0; i < trace.length; i++) {
+            rom.putShort(pc + (i << 1), (short) trace[i]);
+        }
+        sh2.reset(masterCtx);
+        masterCtx.registers[1] = count;
+        long cycles = 0, runs = 0;
+        do {
+            sh2.run(masterCtx);
+            cycles += masterCtx.cycles_ran;
+            runs++;
+        } while (masterCtx.registers[1] != 0 && runs < 0x10000);
+        return new long[]{cycles, runs, masterCtx.PC, masterCtx.SR, masterCtx.registers[3]};
+    }
+
+    private static Sh2Block createBlock(int[] words, int len) {
+        Sh2Block block = new Sh2Block(SH2_START_ROM | pc, MASTER);
+        block.prefetchWords = words;
+        block.prefetchLenWords = len;
+        return block;
+    }
+}
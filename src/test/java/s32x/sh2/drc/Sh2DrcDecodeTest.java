@@ -83,6 +83,18 @@ public class Sh2DrcDecodeTest extends Sh2MultiTestBase {
             Range.closed(pc + 0xA, pc + 0xE)
     };
 
+    //the 1st block ends with a forward bt, when hot it becomes a superblock spanning the whole loop
+    public static int[] traceSuperblock(int tFlagOpcode) {
+        return new int[]{
+                tFlagOpcode, //0
+                0x8901, //2: BT 8
+                0x7101, //4: ADD #1,R1
+                NOP, //6
+                0xAFFA, //8: BRA 0
+                NOP, //A
+        };
+    }
+
     static {
         config = configCacheEn;
     }
@@ -117,6 +129,34 @@ public class Sh2DrcDecodeTest extends Sh2MultiTestBase {
         testBlockInternal(c, trace3, trace3Ranges);
     }
 
+    @ParameterizedTest
+    @MethodSource("fileProvider")
+    public void testSuperblock(Sh2.Sh2Config c) {
+        System.out.println("Testing: " + c);
+        if (!Sh2Block.SH2_DRC_SUPERBLOCK) {
+            return;
+        }
+        //bt never taken
+        testSuperblockInternal(c, traceSuperblock(CLRT));
+        Assertions.assertTrue(masterCtx.registers[1] > 0);
+        //bt always taken, side exit
+        testSuperblockInternal(c, traceSuperblock(SETT));
+        Assertions.assertEquals(0, masterCtx.registers[1]);
+    }
+
+    private void testSuperblockInternal(Sh2.Sh2Config c, int[] trace) {
+        resetCacheConfig(c);
+        setTrace(trace, masterCtx);
+        masterCtx.registers[1] = 0;
+        Sh2Helper.Sh2PcInfoWrapper wrapper = Sh2Helper.getOrCreate(SH2_START_ROM | pc, MASTER);
+        DrcUtil.loopUntilDrc(sh2, masterCtx, wrapper);
+        Assertions.assertTrue(wrapper.block.isSuperblock());
+        Assertions.assertEquals(trace.length, wrapper.block.prefetchLenWords);
+        for (int i = 0; i < 10; i++) {
+            sh2.run(masterCtx);
+        }
+    }
+
     @Override
     @BeforeEach
     public void before() {
@@ -0,0 +1,122 @@
+package s32x.sh2.drc;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import s32x.sh2.Sh2Helper;
+import s32x.sh2.Sh2Helper.Sh2PcInfoWrapper;
+
+import static s32x.dict.S32xDict.SH2_START_SDRAM;
+import static s32x.sh2.drc.Sh2KnownBlocks.MAX_KNOWN_BLOCKS_PER_PC;
+import static s32x.util.S32xUtil.CpuDeviceAccess.MASTER;
+
+/**
+ * Federico Berti
+ * <p>
+ * Copyright 2023
+ */
+public class Sh2KnownBlocksTest {
+
+    private static final Runnable NO_OP = () -> {
+    };
+
+    @BeforeEach
+    public void before() {
+        Sh2Helper.clear();
+    }
+
+    @Test
+    public void testLruPerPc() {
+        Sh2PcInfoWrapper piw = Sh2Helper.getOrCreate(SH2_START_SDRAM, MASTER);
+        Sh2Block[] blocks = new Sh2Block[MAX_KNOWN_BLOCKS_PER_PC + 2];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = createInvalidBlock(i);
+            piw.addToKnownBlocks(blocks[i]);
+            //keep the first one alive
+            Assertions.assertSame(blocks[0], getKnownBlock(piw, blocks[0]));
+        }
+        Assertions.assertEquals(MAX_KNOWN_BLOCKS_PER_PC, piw.knownBlocks.size());
+        Assertions.assertSame(blocks[0], getKnownBlock(piw, blocks[0]));
+        for (int i = 1; i < 3; i++) {
+            Assertions.assertSame(Sh2Block.INVALID_BLOCK, getKnownBlock(piw, blocks[i]));
+            //evicted blocks drop the generated code
+            Assertions.assertNull(blocks[i].stage2Drc);
+        }
+        Assertions.assertSame(blocks[blocks.length - 1], getKnownBlock(piw, blocks[blocks.length - 1]));
+        Assertions.assertNotNull(blocks[blocks.length - 1].stage2Drc);
+    }
+
+    @Test
+    public void testRemove() {
+        Sh2PcInfoWrapper piw = Sh2Helper.getOrCreate(SH2_START_SDRAM, MASTER);
+        Sh2Block b = createInvalidBlock(1);
+        piw.addToKnownBlocks(b);
+        piw.removeKnownBlock(b);
+        Assertions.assertTrue(piw.knownBlocks.isEmpty());
+        Assertions.assertNull(b.stage2Drc);
+    }
+
+    @Test
+    public void testSameHash() {
+        Sh2PcInfoWrapper piw = Sh2Helper.getOrCreate(SH2_START_SDRAM, MASTER);
+        //used to collide on the low 16 bits
+        Sh2Block b1 = createInvalidBlock(0x10001);
+        Sh2Block b2 = createInvalidBlock(0x20001);
+        piw.addToKnownBlocks(b1);
+        piw.addToKnownBlocks(b2);
+        Assertions.assertSame(b1, getKnownBlock(piw, b1));
+        Assertions.assertSame(b2, getKnownBlock(piw, b2));
+
+        //same hash, different words
+        Sh2Block b3 = createInvalidBlock(0x10001);
+        b3.prefetchWords = new int[]{0x10002};
+        piw.addToKnownBlocks(b3);
+        Assertions.assertEquals(3, piw.knownBlocks.size());
+        Assertions.assertSame(b1, getKnownBlock(piw, b1));
+        Assertions.assertSame(b3, getKnownBlock(piw, b3));
+        Assertions.assertSame(Sh2Block.INVALID_BLOCK, piw.getKnownBlock(b1.hashCodeWords, new int[]{0x10003}, 1));
+    }
+
+    //a superblock is found via the words of the block it extends
+    @Test
+    public void testSuperblock() {
+        Sh2PcInfoWrapper piw = Sh2Helper.getOrCreate(SH2_START_SDRAM, MASTER);
+        Sh2Block b = createInvalidBlock(1);
+        b.setSuperblock(true);
+        b.baseLenWords = 1;
+        b.baseHashCodeWords = 1;
+        b.prefetchWords = new int[]{1, 2, 3};
+        b.prefetchLenWords = 3;
+        b.hashCodeWords = 0x123;
+        piw.addToKnownBlocks(b);
+        Assertions.assertSame(b, piw.getKnownBlock(1, new int[]{1}, 1));
+        Assertions.assertSame(Sh2Block.INVALID_BLOCK, piw.getKnownBlock(1, new int[]{2}, 1));
+        Assertions.assertSame(Sh2Block.INVALID_BLOCK, getKnownBlock(piw, b));
+    }
+
+    @Test
+    public void testTotalSize() {
+        Sh2PcInfoWrapper piw1 = Sh2Helper.getOrCreate(SH2_START_SDRAM, MASTER);
+        Sh2PcInfoWrapper piw2 = Sh2Helper.getOrCreate(SH2_START_SDRAM + 2, MASTER);
+        piw1.addToKnownBlocks(createInvalidBlock(1));
+        piw1.addToKnownBlocks(createInvalidBlock(2));
+        piw2.addToKnownBlocks(createInvalidBlock(3));
+        Assertions.assertEquals(3, Sh2KnownBlocks.totalSize());
+        Sh2Helper.clear();
+        Assertions.assertEquals(0, Sh2KnownBlocks.totalSize());
+    }
+
+    private static Sh2Block getKnownBlock(Sh2PcInfoWrapper piw, Sh2Block b) {
+        return piw.getKnownBlock(b.hashCodeWords, b.prefetchWords, b.prefetchLenWords);
+    }
+
+    private static Sh2Block createInvalidBlock(int hash) {
+        Sh2Block b = new Sh2Block(SH2_START_SDRAM, MASTER);
+        b.hashCodeWords = hash;
+        b.prefetchWords = new int[]{hash};
+        b.prefetchLenWords = 1;
+        b.stage2Drc = NO_OP;
+        b.invalidate();
+        return b;
+    }
+}
@@ -0,0 +1,58 @@
+package s32x.sh2.drc;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import s32x.sh2.Sh2BaseTest;
+import s32x.sh2.Sh2Instructions;
+import s32x.sh2.prefetch.Sh2Prefetcher.Sh2BlockUnit;
+
+import java.util.Arrays;
+
+import static s32x.dict.S32xDict.SH2_START_SDRAM;
+import static s32x.sh2.Sh2Disassembler.*;
+import static s32x.util.S32xUtil.CpuDeviceAccess.MASTER;
+
+/**
+ * Federico Berti
+ * <p>
+ * Copyright 2023
+ */
+public class Sh2TFlagLivenessTest extends Sh2BaseTest {
+
+    private static final int CMPEQ_R0_R1 = 0x3010, TST_R0_R0 = 0x2008, SHLL_R2 = 0x4200, MOVT_R3 = 0x0329,
+            BF_BACK = 0x8BF0, BRA_BACK = 0xAFF0, BTS_BACK = 0x8DF0, ADD_R0_R1 = 0x310C;
+
+    @Test
+    public void testOverwrittenBeforeUse() {
+        //cmp/eq, tst, shll, bf -> only the shll T is used
+        boolean[] dead = tFlagDead(CMPEQ_R0_R1, TST_R0_R0, SHLL_R2, BF_BACK);
+        Assertions.assertArrayEquals(new boolean[]{true, true, false, false}, dead);
+    }
+
+    @Test
+    public void testLiveAtBlockExit() {
+        //T is visible to the next block
+        boolean[] dead = tFlagDead(CMPEQ_R0_R1, ADD_R0_R1, SETT, BRA_BACK, NOP);
+        Assertions.assertArrayEquals(new boolean[]{true, false, false, false, false}, dead);
+    }
+
+    @Test
+    public void testConsumers() {
+        boolean[] dead = tFlagDead(CLRT, MOVT_R3, SETT, CMPEQ_R0_R1, BF_BACK);
+        Assertions.assertArrayEquals(new boolean[]{false, false, true, false, false}, dead);
+
+        //bt/s reads T before the delay slot runs, the delay slot result is live
+        dead = tFlagDead(SETT, CLRT, BTS_BACK, DT | (4 << 8));
+        Assertions.assertArrayEquals(new boolean[]{true, false, false, false}, dead);
+    }
+
+    private static boolean[] tFlagDead(int... opcodes) {
+        Sh2Block block = new Sh2Block(SH2_START_SDRAM, MASTER);
+        Sh2BlockUnit[] units = Arrays.stream(opcodes).mapToObj(op -> new Sh2BlockUnit(Sh2Instructions.instOpcodeMap[op])).
+                toArray(Sh2BlockUnit[]::new);
+        block.prefetchWords = opcodes;
+        block.prefetchLenWords = opcodes.length;
+        block.stage1(units);
+        return Ow2DrcOptimizer.tFlagDeadMask(block);
+    }
+}
@@ -0,0 +1,116 @@
+package s32x.sh2.prefetch;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import s32x.sh2.drc.Sh2Block;
+import s32x.util.S32xUtil.CpuDeviceAccess;
+
+import static s32x.dict.S32xDict.SH2_START_ROM;
+import static s32x.dict.S32xDict.SH2_START_SDRAM;
+import static s32x.util.S32xUtil.CpuDeviceAccess.MASTER;
+import static s32x.util.S32xUtil.CpuDeviceAccess.SLAVE;
+
+/**
+ * Federico Berti
+ * <p>
+ * Copyright 2023
+ */
+public class Sh2CodePagesTest {
+
+    private static final int PAGE = 1 << Sh2CodePages.PAGE_SHIFT;
+
+    @BeforeEach
+    public void before() {
+        Sh2CodePages.clear();
+    }
+
+    @Test
+    public void testMarkBlock() {
+        int pc = SH2_START_SDRAM + 0x100 + PAGE - 4;
+        Sh2CodePages.addBlock(createBlock(pc, 4));
+        //spans two pages
+        Assertions.assertTrue(Sh2CodePages.isCode(MASTER, pc, pc + 1));
+        Assertions.assertTrue(Sh2CodePages.isCode(MASTER, pc + 6, pc + 7));
+        Assertions.assertTrue(Sh2CodePages.isCode(MASTER, SH2_START_SDRAM + 0x100, SH2_START_SDRAM + 0x101));
+        Assertions.assertFalse(Sh2CodePages.isCode(MASTER, pc - PAGE, pc - PAGE + 3));
+        Assertions.assertFalse(Sh2CodePages.isCode(MASTER, pc + 2 * PAGE, pc + 2 * PAGE + 3));
+        //a long write ending on the code page
+        Assertions.assertTrue(Sh2CodePages.isCode(MASTER, SH2_START_SDRAM + 0xFE, SH2_START_SDRAM + 0x101));
+
+        Assertions.assertFalse(Sh2CodePages.isCode(SLAVE, pc, pc + 1));
+        Assertions.assertFalse(Sh2CodePages.isCode(MASTER, SH2_START_ROM + 0x100, SH2_START_ROM + 0x101));
+    }
+
+    @Test
+    public void testAliases() {
+        int pc = SH2_START_SDRAM + 0x200;
+        Sh2CodePages.addBlock(createBlock(pc, 2));
+        //cached and cache-through
+        Assertions.assertTrue(Sh2CodePages.isCode(MASTER, pc & 0xFFF_FFFF, (pc & 0xFFF_FFFF) + 1));
+        //sdram mirror
+        Assertions.assertTrue(Sh2CodePages.isCode(MASTER, pc + 0x4_0000, pc + 0x4_0001));
+
+        Sh2CodePages.addBlock(createBlock((SH2_START_ROM & 0xFFF_FFFF) + 0x40, 1, SLAVE));
+        Assertions.assertTrue(Sh2CodePages.isCode(SLAVE, SH2_START_ROM + 0x40, SH2_START_ROM + 0x41));
+        Assertions.assertFalse(Sh2CodePages.isCode(MASTER, SH2_START_ROM + 0x40, SH2_START_ROM + 0x41));
+    }
+
+    @Test
+    public void testClear() {
+        int pc = SH2_START_SDRAM + 0x200;
+        Sh2CodePages.addBlock(createBlock(pc, 2));
+        Sh2CodePages.clear();
+        Assertions.assertFalse(Sh2CodePages.isCode(MASTER, pc, pc + 3));
+    }
+
+    @Test
+    public void testGetBlocks() {
+        int pc = SH2_START_SDRAM + 0x400;
+        Sh2Block b1 = createBlock(pc, 10);
+        //nested, ends on the next page
+        Sh2Block b2 = createBlock(pc + 0x10, 12);
+        Sh2Block b3 = createBlock(pc + PAGE + 0x10, 2);
+        Sh2CodePages.addBlock(b1);
+        Sh2CodePages.addBlock(b2);
+        Sh2CodePages.addBlock(b3);
+        Sh2Block[] out = new Sh2Block[4];
+        Assertions.assertEquals(2, Sh2CodePages.getBlocks(MASTER, pc + 0x10, pc + 0x11, out));
+        Assertions.assertSame(b1, out[0]);
+        Assertions.assertSame(b2, out[1]);
+        //b2 only counted once
+        Assertions.assertEquals(1, Sh2CodePages.getBlocks(MASTER, pc + PAGE - 2, pc + PAGE + 1, out));
+        Assertions.assertSame(b2, out[0]);
+        Assertions.assertEquals(1, Sh2CodePages.getBlocks(MASTER, pc + PAGE + 0x10, pc + PAGE + 0x13, out));
+        Assertions.assertEquals(0, Sh2CodePages.getBlocks(MASTER, pc + 0x20 + PAGE, pc + 0x23 + PAGE, out));
+        Assertions.assertEquals(0, Sh2CodePages.getBlocks(SLAVE, pc, pc + 1, out));
+        //too small
+        Assertions.assertEquals(2, Sh2CodePages.getBlocks(MASTER, pc + 0x10, pc + 0x11, new Sh2Block[1]));
+    }
+
+    @Test
+    public void testRemoveBlock() {
+        int pc = SH2_START_SDRAM + 0x400;
+        Sh2Block b1 = createBlock(pc, 2);
+        Sh2Block b2 = createBlock(pc + PAGE - 2, 2);
+        Sh2CodePages.addBlock(b1);
+        Sh2CodePages.addBlock(b2);
+        Sh2CodePages.removeBlock(b1);
+        Assertions.assertTrue(Sh2CodePages.isCode(MASTER, pc, pc + 1));
+        Assertions.assertEquals(0, Sh2CodePages.getBlocks(MASTER, pc, pc + 1, new Sh2Block[1]));
+        Sh2CodePages.removeBlock(b2);
+        //pages without blocks are data only again
+        Assertions.assertFalse(Sh2CodePages.isCode(MASTER, pc, pc + 1));
+        Assertions.assertFalse(Sh2CodePages.isCode(MASTER, pc + PAGE, pc + PAGE + 1));
+    }
+
+    private static Sh2Block createBlock(int pc, int lenWords) {
+        return createBlock(pc, lenWords, MASTER);
+    }
+
+    private static Sh2Block createBlock(int pc, int lenWords, CpuDeviceAccess cpu) {
+        Sh2Block b = new Sh2Block(pc, cpu);
+        b.prefetchLenWords = lenWords;
+        return b;
+    }
+}
@@ -0,0 +1,68 @@
+package s32x.vdp;
+
+import omegadrive.util.VideoMode;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import s32x.util.S32xUtil;
+
+import java.util.Random;
+
+/**
+ * Federico Berti
+ * <p>
+ * Copyright 2023
+ * <p>
+ * The Vector API composite and stretch should match the scalar loops.
+ */
+public class VectorCompositeTest {
+
+    private static final int H40_LEN = 320 * 240, H32_LEN = 256 * 240;
+
+    private final Random r = new Random(0x32);
+
+    @BeforeEach
+    public void before() {
+        Assumptions.assumeTrue(ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent(),
+                "Needs --add-modules jdk.incubator.vector");
+    }
+
+    @Test
+    public void testComposite() {
+        int[] mars = randomArray(H40_LEN), md = randomArray(H40_LEN);
+        for (int i = 0; i < 8; i++) {
+            boolean prio32x = (i & 1) > 0;
+            boolean regBlank = (i & 2) > 0;
+            boolean s32xBgBlank = !prio32x && regBlank;
+            boolean s32xFgBlank = prio32x && regBlank;
+            //odd ranges to exercise the scalar tail
+            int from = (i & 4) > 0 ? 3 : 0;
+            int to = (i & 4) > 0 ? H40_LEN - 7 : H40_LEN;
+            int[] fgExp = (prio32x ? mars : md).clone(), bgExp = (prio32x ? md : mars).clone();
+            int[] fgAct = fgExp.clone(), bgAct = bgExp.clone();
+            MarsVdpImpl.compositeRangeScalar(fgExp, bgExp, mars, md, prio32x, s32xBgBlank, s32xFgBlank, from, to);
+            VectorComposite.compositeRange(fgAct, bgAct, mars, md, prio32x, s32xBgBlank, s32xFgBlank, from, to);
+            Assertions.assertArrayEquals(fgExp, fgAct, "prio32x: " + prio32x + ", regBlank: " + regBlank);
+        }
+    }
+
+    @Test
+    public void testStretchH32ToH40() {
+        VideoMode h32 = VideoMode.PAL_H32_V30;
+        Assertions.assertEquals(H32_LEN, h32.getDimension().width * h32.getDimension().height);
+        int[] src = randomArray(H32_LEN);
+        int[] exp = new int[H40_LEN], act = new int[H40_LEN];
+        S32xUtil.vidH32StretchToH40(h32, src, exp);
+        VectorComposite.vidH32StretchToH40(src, act);
+        Assertions.assertArrayEquals(exp, act);
+    }
+
+    private int[] randomArray(int len) {
+        int[] a = new int[len];
+        for (int i = 0; i < len; i++) {
+            a[i] = r.nextInt();
+        }
+        return a;
+    }
+}
@@ -0,0 +1,166 @@
+package s32x.vdp.mars_render;
+
+import omegadrive.util.FileUtil;
+import omegadrive.util.Size;
+import omegadrive.util.Util;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+import s32x.dict.S32xDict;
+import s32x.util.Md32xRuntimeData;
+import s32x.util.S32xUtil;
+import s32x.vdp.MarsVdp;
+import s32x.vdp.MarsVdp.DebugMarsVdpRenderContext;
+import s32x.vdp.MarsVdpImpl;
+
+import java.nio.ShortBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static s32x.vdp.mars_render.VdpMarsRenderCompareFileTest.baseDataFolder;
+
+/**
+ * Federico Berti
+ * <p>
+ * Copyright 2023
+ * <p>
+ * Incremental rendering after framebuffer, line table and palette writes should match a full render,
+ * rendering a frame snapshot should match rendering on the emulation thread.
+ */
+public class VdpMarsDirtyLinesTest {
+
+    static Stream<String> fileProvider() {
+        return VdpMarsRenderCompareFileTest.getFileProvider(baseDataFolder);
+    }
+
+    @BeforeAll
+    public static void beforeTest() {
+        System.setProperty("helios.headless", "true");
+        System.setProperty("md.show.vdp.debug.viewer", "false");
+    }
+
+    @BeforeEach
+    public void before() {
+        Md32xRuntimeData.releaseInstance();
+        Md32xRuntimeData.newInstance();
+        Md32xRuntimeData.setAccessTypeExt(S32xUtil.CpuDeviceAccess.MASTER);
+    }
+
+    @ParameterizedTest
+    @MethodSource("fileProvider")
+    public void testIncrementalRender(String fileName) {
+        Path file = Paths.get(baseDataFolder.toAbsolutePath().toString(), fileName);
+        DebugMarsVdpRenderContext d = toMarsContext(file);
+        MarsVdp.MarsVdpContext vc = d.renderContext.vdpContext;
+        if (vc.bitmapMode == MarsVdp.BitmapMode.BLANK) {
+            return;
+        }
+        MarsVdp vdp = createAndDraw(d);
+        Random r = new Random(fileName.hashCode());
+        final int display = vc.frameBufferDisplay;
+        final short[] fb = display == 0 ? d.frameBuffer0 : d.frameBuffer1;
+        final int h = vc.videoMode.getDimension().height;
+        for (int i = 0; i < 8; i++) {
+            if ((i & 1) == 1) {
+                //render the other framebuffer in between
+                vc.frameBufferDisplay = 1 - display;
+                vdp.draw(vc);
+                vc.frameBufferDisplay = display;
+            }
+            vc.frameBufferWritable = display;
+            randomWrites(r, d, fb, h, vdp);
+            vdp.draw(vc);
+            int[] exp = createAndDraw(d).getMarsVdpRenderContext().screen;
+            Assertions.assertArrayEquals(exp, vdp.getMarsVdpRenderContext().screen, fileName + ", round " + i);
+        }
+    }
+
+    //the render pipeline path should match rendering and compositing on the emulation thread
+    @ParameterizedTest
+    @MethodSource("fileProvider")
+    public void testFrameSnapshotRender(String fileName) {
+        Path file = Paths.get(baseDataFolder.toAbsolutePath().toString(), fileName);
+        DebugMarsVdpRenderContext d = toMarsContext(file);
+        MarsVdp.MarsVdpContext vc = d.renderContext.vdpContext;
+        MarsVdp vdp = createAndDraw(d);
+        MarsVdpImpl pipelineVdp = (MarsVdpImpl) createAndDraw(d);
+        pipelineVdp.enableFrameSnapshots(3);
+        Random r = new Random(fileName.hashCode());
+        final int display = vc.frameBufferDisplay;
+        final short[] fb = display == 0 ? d.frameBuffer0 : d.frameBuffer1;
+        final int h = vc.videoMode.getDimension().height;
+        int[] md = new int[vdp.getMarsVdpRenderContext().screen.length];
+        for (int i = 0; i < 6; i++) {
+            vc.frameBufferWritable = display;
+            if (i > 0 && vc.bitmapMode != MarsVdp.BitmapMode.BLANK) {
+                randomWrites(r, d, fb, h, vdp, pipelineVdp);
+            }
+            for (int j = 0; j < md.length; j++) {
+                md[j] = r.nextInt() & ~1;
+            }
+            vdp.draw(vc);
+            pipelineVdp.draw(vc);
+            int[] exp = MarsVdpImpl.doCompositeRenderingExt(vc.videoMode, md.clone(), vdp.getMarsVdpRenderContext());
+            MarsVdpImpl.FrameSnapshot s = pipelineVdp.pollFrameSnapshot();
+            int[] act = pipelineVdp.renderFrameSnapshot(vc.videoMode, md.clone(), s);
+            pipelineVdp.releaseFrameSnapshot(s);
+            Assertions.assertArrayEquals(exp, act, fileName + ", round " + i);
+            if ((i & 1) == 1) {
+                //no vblank since the previous frame, reuses the previous snapshot render
+                act = pipelineVdp.renderFrameSnapshot(vc.videoMode, md.clone(), null);
+                Assertions.assertArrayEquals(exp, act, fileName + ", round " + i);
+            }
+        }
+    }
+
+    private static void randomWrites(Random r, DebugMarsVdpRenderContext d, short[] fb, int h, MarsVdp... vdps) {
+        for (int j = 0; j < 16; j++) {
+            switch (r.nextInt(4)) {
+                case 0 -> { //line table
+                    int row = r.nextInt(h);
+                    writeFb(fb, row, fb[r.nextInt(h)], vdps);
+                }
+                case 1 -> { //palette
+                    int idx = r.nextInt(d.palette.length);
+                    int val = r.nextInt(0x10000);
+                    d.palette[idx] = (short) val;
+                    for (MarsVdp vdp : vdps) {
+                        vdp.write(S32xDict.START_32X_COLPAL_CACHE + (idx << 1), val, Size.WORD);
+                    }
+                }
+                default -> { //data word of a displayed line
+                    int pos = (fb[r.nextInt(h)] & 0xFFFF) + r.nextInt(160);
+                    if (pos >= MarsVdp.LINE_TABLE_WORDS && pos < fb.length) {
+                        writeFb(fb, pos, r.nextInt(0x10000), vdps);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void writeFb(short[] fb, int wordPos, int val, MarsVdp... vdps) {
+        fb[wordPos] = (short) val;
+        for (MarsVdp vdp : vdps) {
+            vdp.write(S32xDict.START_DRAM_CACHE + (wordPos << 1), val & 0xFFFF, Size.WORD);
+        }
+    }
+
+    private static MarsVdp createAndDraw(DebugMarsVdpRenderContext d) {
+        //the vdp copies the data, the context is shared
+        MarsVdp.MarsVdpContext vc = d.renderContext.vdpContext;
+        MarsVdp vdp = MarsVdpImpl.createInstance(vc, ShortBuffer.wrap(d.frameBuffer0),
+                ShortBuffer.wrap(d.frameBuffer1), ShortBuffer.wrap(d.palette));
+        vdp.updateVideoMode(vc.videoMode);
+        vdp.draw(vc);
+        return vdp;
+    }
+
+    private static DebugMarsVdpRenderContext toMarsContext(Path datFile) {
+        byte[] data = FileUtil.readBinaryFile(datFile, "dat");
+        return (DebugMarsVdpRenderContext) Util.deserializeObject(data, 0, data.length);
+    }
+}